@@ -0,0 +1,162 @@
+<?php
+// Bulk export of all buildings in an envelope, req=bbox
+// Returns JSON array of objects in the same format as point queries with req=full
+$minlat=$_REQUEST['minlat'];
+$minlon=$_REQUEST['minlon'];
+$maxlat=$_REQUEST['maxlat'];
+$maxlon=$_REQUEST['maxlon'];
+
+if ( !is_numeric($minlat) or !is_numeric($minlon) or !is_numeric($maxlat) or !is_numeric($maxlon) ) die;
+// refuse too large envelopes, about 2x2 km
+if ( $maxlat - $minlat > 0.02 or $maxlon - $minlon > 0.03 or $maxlat < $minlat or $maxlon < $minlon ) die;
+header('Content-Type: application/json');
+
+$envelope="st_transform(st_makeenvelope(".$minlon.",".$minlat.",".$maxlon.",".$maxlat.",4326),900913)";
+$max_buildings=2000;
+
+// -----------------
+// Buildings
+$query="
+  select distinct on (s.kod) s.kod,
+        CASE
+          WHEN s.typ_kod = 1 THEN 'Číslo popisné'
+          WHEN s.typ_kod = 2 THEN 'Číslo evidenční'
+          WHEN s.typ_kod = 3 THEN 'bez č.p./č.e.'
+          ELSE ''
+        END cislo_typ,
+        trim(both '{}' from s.cisla_domovni::text) cisla_domovni,
+        am.cislo_orientacni_hodnota || coalesce(am.cislo_orientacni_pismeno, '') cislo_orientacni,
+        am.kod as adresni_misto_kod,
+        s.pocet_podlazi, a.nazev, s.plati_od, s.pocet_bytu, s.dokonceni,
+        am.adrp_psc psc, ul.nazev ulice, c.nazev cast_obce,
+        momc.nazev mestska_cast,
+        ob.nazev obec, ok.nazev okres, vu.nazev kraj,
+        s.zpusob_vyuziti_kod, a.osmtag_k, a.osmtag_v
+  from rn_stavebni_objekt s
+      left outer join osmtables.zpusob_vyuziti_objektu a on s.zpusob_vyuziti_kod = a.kod
+      left outer join rn_adresni_misto am on am.stavobj_kod = s.kod and not am.deleted
+      left outer join rn_ulice ul on am.ulice_kod = ul.kod and not ul.deleted
+      left outer join rn_cast_obce c on c.kod = s.cobce_kod and not c.deleted
+      left outer join rn_momc momc on momc.kod = s.momc_kod and not momc.deleted
+      left outer join rn_obec ob on coalesce(ul.obec_kod, c.obec_kod)  = ob.kod and not ob.deleted
+      left outer join rn_okres ok on ob.okres_kod = ok.kod and not ok.deleted
+      left outer join rn_vusc vu on ok.vusc_kod = vu.kod and not vu.deleted
+  where s.hranice && ".$envelope."
+  and st_intersects(s.hranice, ".$envelope.")
+  and not s.deleted
+  order by s.kod, am.kod
+  limit ".$max_buildings.";
+  ";
+$result = pg_query($CONNECT,$query);
+
+$buildings = array();
+$kods = array();
+for ($i = 0; $i < pg_num_rows($result); $i++)
+{
+  $row = pg_fetch_array($result, $i);
+  $kod = $row["kod"];
+  array_push($kods, $kod);
+
+  $buildings[$kod] = array(
+    "source" => "cuzk:ruian",
+    "stavebni_objekt" =>
+      array( "ruian_id" => $row["kod"],
+            "cislo_domovni" => $row["cisla_domovni"],
+            "cislo_domovni_typ" => $row["cislo_typ"],
+            "cislo_orientacni" => $row["cislo_orientacni"],
+            "adresni_misto_kod" => $row["adresni_misto_kod"],
+            "ulice" => $row["ulice"],
+            "cast_obce" => $row["cast_obce"],
+            "mestska_cast" => $row["mestska_cast"],
+            "obec" => $row["obec"],
+            "okres" => $row["okres"],
+            "kraj" => $row["kraj"],
+            "psc" => $row["psc"],
+            "pocet_podlazi" => $row["pocet_podlazi"],
+            "zpusob_vyuziti_kod" => $row["zpusob_vyuziti_kod"],
+            "zpusob_vyuziti_key" => $row["osmtag_k"],
+            "zpusob_vyuziti_val" => $row["osmtag_v"],
+            "pocet_bytu" => $row["pocet_bytu"],
+            "dokonceni" => $row["dokonceni"],
+            "plati_od" => $row["plati_od"]
+            ),
+    "geometry" => array(),
+    "adresni_mista" => array()
+    );
+}
+
+if (count($kods) > 0)
+{
+  $kod_list = implode(",", $kods);
+
+  // -----------------
+  // Building geometry, complete buildings including inners
+  // Multipart buildings are exported by their largest part
+  $query="
+    select p.kod, (r.path)[1] as ring,
+          st_asgeojson(st_transform(local_less_simplify_polygon(r.geom),4326)) as geom
+    from
+      (select distinct on (kod) kod, part
+      from
+        (select kod, (st_dump(hranice)).geom as part
+        from rn_stavebni_objekt
+        where kod in (".$kod_list.")
+          and not deleted) as parts
+      order by kod, st_area(part) desc) as p,
+      lateral st_dumprings(p.part) as r
+    order by p.kod, ring
+  ";
+  $result = pg_query($CONNECT,$query);
+
+  for ($i = 0; $i < pg_num_rows($result); $i++)
+  {
+    $row = pg_fetch_array($result, $i);
+    $kod = $row["kod"];
+    $geometry = json_decode($row["geom"],true);
+    if ($row["ring"] == 0)
+    {
+      $buildings[$kod]["geometry"] = array("outer" => $geometry['coordinates'][0], "inners" => array());
+    } else if (isset($buildings[$kod]["geometry"]["outer"]))
+    {
+      array_push($buildings[$kod]["geometry"]["inners"], $geometry['coordinates'][0]);
+    }
+  }
+
+  // -----------------
+  // Addresses
+  $query="
+    select am.stavobj_kod,
+          am.kod,
+          am.cislo_domovni,
+          am.cislo_orientacni_hodnota || coalesce(am.cislo_orientacni_pismeno, '') cislo_orientacni,
+          ul.nazev ulice
+    from rn_adresni_misto am
+        left outer join rn_ulice ul on am.ulice_kod = ul.kod
+    where am.stavobj_kod in (".$kod_list.")
+    and not am.deleted
+    order by am.stavobj_kod, am.kod
+  ";
+  $result = pg_query($CONNECT,$query);
+
+  for ($i = 0; $i < pg_num_rows($result); $i++)
+  {
+    $row = pg_fetch_array($result, $i);
+    $kod = $row["stavobj_kod"];
+    array_push($buildings[$kod]["adresni_mista"],
+                array("ruian_id" => $row["kod"],
+                      "cislo_domovni" => $row["cislo_domovni"],
+                      "cislo_orientacni" => $row["cislo_orientacni"],
+                      "ulice" => $row["ulice"]));
+  }
+
+  // keep point query semantics, single address place is exported in stavebni_objekt only
+  foreach ($buildings as $kod => $building)
+  {
+    if (count($building["adresni_mista"]) == 1)
+      $buildings[$kod]["adresni_mista"] = array();
+  }
+}
+
+echo json_encode(array_values($buildings));
+
+?>
@@ -1,8 +1,15 @@
 <?php
 require("config.php");
+$req=$_REQUEST['req'];
+
+if ( "$req" == "bbox" )
+{
+  require("bbox.php");
+  exit;
+}
+
 $lat=$_REQUEST['lat'];
 $lon=$_REQUEST['lon'];
-$req=$_REQUEST['req'];
 
 if ( !is_numeric($lat) or !is_numeric($lon) ) die;
 header('Content-Type: application/json');
@@ -0,0 +1,42 @@
+<?php
+// Bulk export of all lands in an envelope, req=bbox
+// Returns JSON array of objects in the same format as point queries
+$minlat=$_REQUEST['minlat'];
+$minlon=$_REQUEST['minlon'];
+$maxlat=$_REQUEST['maxlat'];
+$maxlon=$_REQUEST['maxlon'];
+
+if ( !is_numeric($minlat) or !is_numeric($minlon) or !is_numeric($maxlat) or !is_numeric($maxlon) ) die;
+// refuse too large envelopes, about 2x2 km
+if ( $maxlat - $minlat > 0.02 or $maxlon - $minlon > 0.03 or $maxlat < $minlat or $maxlon < $minlon ) die;
+header('Content-Type: application/json');
+
+$envelope="st_transform(st_makeenvelope(".$minlon.",".$minlat.",".$maxlon.",".$maxlat.",4326),900913)";
+$max_lands=5000;
+
+$query="
+  select keys,
+  st_asgeojson(st_transform(local_simplify_polygon(part),4326)) as geom
+  from
+    (select keys, (st_dump(hranice)).geom as part
+    from ruian.landuse_view l
+    where l.hranice && ".$envelope."
+      and st_intersects(l.hranice, ".$envelope.")) as parts
+  where st_intersects(part, ".$envelope.")
+  limit ".$max_lands;
+
+$result=pg_query($CONNECT,$query);
+
+$lands = array();
+for ($i = 0; $i < pg_num_rows($result); $i++)
+{
+  $row = pg_fetch_array($result, $i);
+  array_push($lands,
+              array("source" => "cuzk:ruian",
+                    "keys" => $row["keys"],
+                    "geometry" => json_decode($row["geom"],true)['coordinates'][0]));
+}
+
+echo json_encode($lands);
+
+?>
@@ -1,5 +1,12 @@
 <?php
 require("config.php");
+
+if ( isset($_REQUEST['req']) && $_REQUEST['req'] == "bbox" )
+{
+  require("bbox.php");
+  exit;
+}
+
 $lat=$_REQUEST['lat'];
 $lon=$_REQUEST['lon'];
 if ( !is_numeric($lat) or !is_numeric($lon) ) die;
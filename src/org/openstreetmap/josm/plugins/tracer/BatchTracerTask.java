@@ -0,0 +1,344 @@
+/**
+ *  Tracer - plugin for JOSM
+ *  Jan Bilak, Marian Kyral, Martin Svec
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.openstreetmap.josm.plugins.tracer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+import org.openstreetmap.josm.actions.downloadtasks.DownloadOsmTask;
+import org.openstreetmap.josm.actions.downloadtasks.DownloadParams;
+import org.openstreetmap.josm.command.Command;
+import org.openstreetmap.josm.command.SequenceCommand;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.UndoRedoHandler;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.BBox;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.PleaseWaitRunnable;
+import org.openstreetmap.josm.gui.dialogs.relation.DownloadRelationTask;
+import org.openstreetmap.josm.io.OsmTransferException;
+import org.openstreetmap.josm.plugins.tracer.connectways.EdMultipolygon;
+import org.openstreetmap.josm.plugins.tracer.connectways.EdNode;
+import org.openstreetmap.josm.plugins.tracer.connectways.EdObject;
+import org.openstreetmap.josm.plugins.tracer.connectways.EdWay;
+import org.openstreetmap.josm.plugins.tracer.connectways.PreparedPolygon;
+import org.openstreetmap.josm.plugins.tracer.connectways.WayEditor;
+import org.openstreetmap.josm.plugins.tracer.connectways.WayEditorSession;
+import org.openstreetmap.josm.spi.preferences.Config;
+import static org.openstreetmap.josm.tools.I18n.tr;
+import static org.openstreetmap.josm.tools.I18n.trn;
+import org.xml.sax.SAXException;
+
+/**
+ * Traces all objects inside a rectangle or a selected closed way in one operation.
+ * Records are downloaded by area, missing OSM area and incomplete multipolygons are
+ * downloaded once for all objects. Polygons are created in a single WayEditor, so
+ * adjacent objects connect to each other, and committed as a single command.
+ */
+final class BatchTracerTask {
+
+    private final TracerModule m_module;
+    private final IBatchTracerModule m_batchModule;
+    private final Bounds m_bounds;
+    private final PreparedPolygon m_polygon; // lon/lat, null for rectangular area
+    private final int m_maxObjects;
+
+    private final List<TracerModule.AbstractTracerTask> m_tasks = new ArrayList<> ();
+    private final PostTraceNotifications m_notifications = new PostTraceNotifications();
+    private long m_pipelineSeq;
+    private boolean m_pipelineLeft;
+    private volatile boolean m_cancelled;
+
+    private BatchTracerTask (TracerModule module, Bounds bounds, PreparedPolygon polygon) {
+        m_module = module;
+        m_batchModule = (IBatchTracerModule)module;
+        m_bounds = bounds;
+        m_polygon = polygon;
+        m_maxObjects = Config.getPref().getInt("tracer.batch_max_objects", 1000);
+    }
+
+    /**
+     * Creates batch task for the selected closed way, or for the visible map area
+     * if there's no such way. Must be called in EDT thread.
+     * @param module Tracer module implementing {@link IBatchTracerModule}
+     * @return Batch task or null if there's no area to trace
+     */
+    static BatchTracerTask fromSelection (TracerModule module) {
+        DataSet ds = MainApplication.getLayerManager().getEditDataSet();
+        if (ds != null) {
+            for (Way way: ds.getSelectedWays()) {
+                if (!way.isClosed() || way.getNodesCount() < 4 || way.isIncomplete())
+                    continue;
+                List<Node> nodes = way.getNodes();
+                double[] ring = new double[2 * nodes.size()];
+                for (int i = 0; i < nodes.size(); i++) {
+                    LatLon ll = nodes.get(i).getCoor();
+                    ring[2*i] = ll.lon();
+                    ring[2*i + 1] = ll.lat();
+                }
+                PreparedPolygon polygon = new PreparedPolygon (new double[][] { ring });
+                BBox bbox = way.getBBox();
+                Bounds bounds = new Bounds (bbox.getBottomRightLat(), bbox.getTopLeftLon(), bbox.getTopLeftLat(), bbox.getBottomRightLon());
+                return new BatchTracerTask (module, bounds, polygon);
+            }
+        }
+
+        Bounds viewport = TracerUtils.getVisibleBounds();
+        if (viewport == null)
+            return null;
+        return new BatchTracerTask (module, viewport, null);
+    }
+
+    void run () {
+        m_pipelineSeq = TracePipeline.getInstance().enter();
+        MainApplication.worker.submit (new PleaseWaitRunnable (tr("Batch tracing")) {
+            @Override
+            protected void cancel() {
+                m_cancelled = true;
+            }
+
+            @Override
+            protected void realRun() throws SAXException, IOException, OsmTransferException {
+                this.getProgressMonitor().indeterminateSubTask(tr("Downloading {0} data..." , m_module.getName()));
+                try {
+                    stepDownloadRecords ();
+                }
+                catch (RuntimeException | Error e) {
+                    // never block later clicks
+                    leave ();
+                    throw e;
+                }
+            }
+
+            @Override
+            protected void finish() {}
+        });
+    }
+
+    private synchronized void leave () {
+        if (m_pipelineLeft)
+            return;
+        m_pipelineLeft = true;
+        TracePipeline.getInstance().drop(m_pipelineSeq);
+    }
+
+    private synchronized void commitPipeline (Runnable step) {
+        if (m_pipelineLeft)
+            throw new AssertionError ("Batch task already left the pipeline");
+        m_pipelineLeft = true;
+        TracePipeline.getInstance().commit(m_pipelineSeq, step);
+    }
+
+    private void stepDownloadRecords () {
+        List<? extends TracerRecord> records;
+        try {
+            records = m_batchModule.downloadRecords(m_bounds);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            TracerUtils.showNotification(tr("{0} download failed.\nException: {1}", m_module.getName(), e.getLocalizedMessage()), "error");
+            leave ();
+            return;
+        }
+
+        if (m_cancelled) {
+            leave ();
+            return;
+        }
+
+        for (TracerRecord record: records) {
+            if (!record.hasData())
+                continue;
+            LatLon pos = record.getInteriorPoint();
+            if (pos == null || !m_bounds.contains(pos) || (m_polygon != null && !m_polygon.containsPoint (pos.lon(), pos.lat())))
+                continue;
+            if (m_tasks.size() >= m_maxObjects) {
+                TracerUtils.showNotification(tr("Too many objects, only {0} objects will be traced.", m_maxObjects), "warning");
+                break;
+            }
+            TracerModule.AbstractTracerTask task = m_module.trace(pos, false, false, false);
+            task.setBatchRecord(record, m_notifications);
+            m_tasks.add(task);
+        }
+
+        System.out.println("BatchTracerTask: records: " + Integer.toString(records.size()) + ", objects to trace: " + Integer.toString(m_tasks.size()));
+        if (m_tasks.isEmpty()) {
+            TracerUtils.showNotification(tr("Data not available."), "warning");
+            leave ();
+            return;
+        }
+
+        stepDownloadMissingArea ();
+    }
+
+    private void stepDownloadMissingArea () {
+        DataSet ds = MainApplication.getLayerManager().getEditDataSet();
+        Bounds area = null;
+        for (TracerModule.AbstractTracerTask task: m_tasks) {
+            Bounds bounds = task.getBatchMissingArea(ds);
+            if (bounds == null)
+                continue;
+            if (area == null)
+                area = bounds;
+            else
+                area.extend(bounds);
+        }
+
+        // nothing to download? go ahead
+        if (area == null) {
+            stepDownloadIncompleteMultipolygons ();
+            return;
+        }
+
+        // Schedule one download of the missing area of all objects
+        final DownloadOsmTask task = new DownloadOsmMissingAreaTask();
+        final Future<?> future = task.download(new DownloadParams(), area, null);
+        MainApplication.worker.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.get();
+                    if (task.isCanceled())
+                        m_cancelled = true;
+                } catch (Exception e) {}
+                if (m_cancelled) {
+                    leave ();
+                    return;
+                }
+                try {
+                    stepDownloadIncompleteMultipolygons ();
+                }
+                catch (RuntimeException | Error e) {
+                    leave ();
+                    throw e;
+                }
+            }
+        });
+    }
+
+    private void stepDownloadIncompleteMultipolygons () {
+        Set<Relation> incomplete_multipolygons = new LinkedHashSet<> ();
+        for (TracerModule.AbstractTracerTask task: m_tasks) {
+            Collection<Relation> list = task.getBatchIncompleteMultipolygons();
+            if (list != null)
+                incomplete_multipolygons.addAll(list);
+        }
+
+        // nothing to download? go ahead
+        if (incomplete_multipolygons.isEmpty()) {
+            stepCreateTracedPolygons ();
+            return;
+        }
+
+        final DownloadRelationTask task = new DownloadRelationTask(incomplete_multipolygons, MainApplication.getLayerManager().getEditLayer());
+        final Future<?> future = MainApplication.worker.submit(task);
+        MainApplication.worker.submit (new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.get();
+                } catch (Exception e) {}
+                if (m_cancelled) {
+                    leave ();
+                    return;
+                }
+                try {
+                    stepCreateTracedPolygons ();
+                }
+                catch (RuntimeException | Error e) {
+                    leave ();
+                    throw e;
+                }
+            }
+        });
+    }
+
+    private void stepCreateTracedPolygons () {
+        commitPipeline (new Runnable() {
+            @Override
+            @SuppressWarnings("CallToPrintStackTrace")
+            public void run() {
+                long start_time = System.nanoTime();
+                DataSet data_set = MainApplication.getLayerManager().getEditDataSet();
+                data_set.beginUpdate();
+                WayEditor editor = WayEditorSession.beginEdit (data_set);
+                try {
+                    List<EdObject> objects = new ArrayList<> (m_tasks.size());
+                    for (TracerModule.AbstractTracerTask task: m_tasks) {
+                        EdObject object = task.createBatchTracedPolygon (editor);
+                        if (object != null)
+                            objects.add(object);
+                    }
+                    int skipped = m_tasks.size() - objects.size();
+                    if (skipped > 0)
+                        m_notifications.add(trn("{0} object was skipped.", "{0} objects were skipped.", skipped, skipped));
+                    if (!objects.isEmpty())
+                        finalizeEdit (editor, objects);
+                    m_notifications.show();
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                    throw e;
+                }
+                finally {
+                    WayEditorSession.endEdit (editor);
+                    data_set.endUpdate();
+                    long end_time = System.nanoTime();
+                    long time_msecs = (end_time - start_time) / (1000*1000);
+                    System.out.println("Batch polygons time (ms): " + Long.toString(time_msecs) + ", objects: " + Integer.toString(m_tasks.size()));
+                }
+            }
+        });
+    }
+
+    private void finalizeEdit (WayEditor editor, List<EdObject> objects) {
+        List<Command> commands = editor.finalizeEdit(objects, m_tasks.get(0).getResurrectNodesDistanceMeters());
+
+        if (commands.isEmpty()) {
+            m_notifications.add(tr("Nothing changed."));
+            return;
+        }
+
+        UndoRedoHandler.getInstance().add(new SequenceCommand(trn("Trace {0} object", "Trace {0} objects", objects.size(), objects.size()), commands));
+
+        List<OsmPrimitive> sel = new ArrayList<> (objects.size());
+        for (EdObject object: objects) {
+            if (object.isDeleted())
+                continue;
+            if (object.isMultipolygon())
+                sel.add(((EdMultipolygon)object).finalMultipolygon());
+            else if (object.isWay())
+                sel.add(((EdWay)object).finalWay());
+            else
+                sel.add(((EdNode)object).finalNode());
+        }
+        editor.getDataSet().setSelected(sel);
+        TracerUtils.showNotification(trn("Traced {0} object.", "Traced {0} objects.", objects.size(), objects.size()), "info");
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ *  Tracer - plugin for JOSM
+ *  Jan Bilak, Marian Kyral, Martin Svec
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.openstreetmap.josm.plugins.tracer;
+
+import java.util.List;
+import org.openstreetmap.josm.data.Bounds;
+
+/**
+ * Implemented by tracer modules which can download all objects in an area,
+ * see {@link BatchTracerTask}.
+ */
+public interface IBatchTracerModule {
+    /**
+     *  Downloads all objects in given area for batch tracing
+     *  @param bounds area to trace
+     *  @return list of records with data
+     *  @throws Exception download failed
+     */
+    List<? extends TracerRecord> downloadRecords(Bounds bounds) throws Exception;
+}
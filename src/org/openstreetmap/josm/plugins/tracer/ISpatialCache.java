@@ -0,0 +1,51 @@
+/**
+ *  Tracer - plugin for JOSM
+ *  Jan Bilak, Marian Kyral, Martin Svec
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.openstreetmap.josm.plugins.tracer;
+
+import java.util.List;
+import org.openstreetmap.josm.data.coor.LatLon;
+
+/**
+ * Common contract of spatial caches of traced records, see {@link QuadCache} and {@link RTreeCache}.
+ * Implementations are not thread safe, callers must provide their own locking.
+ * @param <T> Type of cached objects
+ */
+public interface ISpatialCache<T extends IQuadCacheObject> {
+
+    /**
+     * Adds object to the cache.
+     * @param object Object to add
+     */
+    void add (T object);
+
+    /**
+     * Removes object from the cache.
+     * @param object Object to remove
+     * @return true if the object was found and removed
+     */
+    boolean remove (T object);
+
+    /**
+     * Returns all cached objects containing given point.
+     * @param latlon Point to search for
+     * @return List of objects containing the point, null if there's no such object
+     */
+    List<T> search (LatLon latlon);
+}
@@ -30,7 +30,7 @@ import org.openstreetmap.josm.data.osm.BBox;
 import org.openstreetmap.josm.plugins.tracer.connectways.LatLonSize;
 import org.openstreetmap.josm.tools.Pair;
 
-public class QuadCache<T extends IQuadCacheObject> {
+public class QuadCache<T extends IQuadCacheObject> implements ISpatialCache<T> {
 
     private final LatLonSize m_quadSize;
     private final Map<QuadIndex, Bucket<T>> m_buckets;
@@ -40,6 +40,7 @@ public class QuadCache<T extends IQuadCacheObject> {
         m_buckets = new HashMap<> ();
     }
 
+    @Override
     public void add (T object) {
         BBox bbox = object.getBBox();
         Pair<QuadIndex, QuadIndex> qibox = bboxToQuadIndexBox (bbox);
@@ -63,6 +64,28 @@ public class QuadCache<T extends IQuadCacheObject> {
         }
     }
 
+    @Override
+    public boolean remove (T object) {
+        Pair<QuadIndex, QuadIndex> qibox = bboxToQuadIndexBox (object.getBBox());
+        QuadIndex qi1 = qibox.a;
+        QuadIndex qi2 = qibox.b;
+        boolean removed = false;
+
+        for (long ilat = qi1.iLat(); ilat <= qi2.iLat(); ilat++) {
+            for (long ilon = qi1.iLon(); ilon <= qi2.iLon(); ilon++) {
+                QuadIndex qi = new QuadIndex (ilat, ilon);
+                Bucket<T> bucket = m_buckets.get(qi);
+                if (bucket == null || !bucket.remove (object))
+                    continue;
+                removed = true;
+                if (bucket.isEmpty())
+                    m_buckets.remove(qi);
+            }
+        }
+        return removed;
+    }
+
+    @Override
     public List<T> search (LatLon latlon) {
         QuadIndex qi = latLonToQuadIndex(latlon);
 
@@ -143,6 +166,14 @@ public class QuadCache<T extends IQuadCacheObject> {
             m_contents.add(object);
         }
 
+        private boolean remove(T object) {
+            return m_contents.remove(object);
+        }
+
+        private boolean isEmpty() {
+            return m_contents.isEmpty();
+        }
+
         private List<T> search(LatLon ll, QuadIndex qi) {
             System.out.println ("QuadCache: searching in bucket: " + qi.toString() + ", total: " + Integer.toString (m_contents.size()));
             List<T> list = null;
@@ -0,0 +1,431 @@
+/**
+ *  Tracer - plugin for JOSM
+ *  Jan Bilak, Marian Kyral, Martin Svec
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.openstreetmap.josm.plugins.tracer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.BBox;
+
+/**
+ * R-tree over bounding boxes of cached objects. Bulk loads are packed using
+ * Sort-Tile-Recursive algorithm, single objects are inserted using Guttman's
+ * quadratic split. Point lookups prune by bounding boxes and call expensive
+ * {@link IQuadCacheObject#containsPoint} for leaf hits only.
+ * @param <T> Type of cached objects
+ */
+public class RTreeCache<T extends IQuadCacheObject> implements ISpatialCache<T> {
+
+    private static final int maxNodeEntries = 16;
+    private static final int minNodeEntries = 6;
+
+    private RNode m_root;
+    private int m_size;
+
+    public RTreeCache () {
+        m_root = new RNode (true);
+        m_size = 0;
+    }
+
+    @Override
+    public void add (T object) {
+        insert (new Entry (object));
+        m_size++;
+    }
+
+    /**
+     * Adds a batch of objects. Empty tree or a batch larger than the current
+     * tree size are packed from scratch, smaller batches are inserted one by one.
+     * @param objects Objects to add
+     */
+    public void addAll (Collection<T> objects) {
+        if (objects.isEmpty())
+            return;
+
+        if (objects.size() < m_size) {
+            for (T object: objects)
+                add (object);
+            return;
+        }
+
+        List<Box> entries = new ArrayList<> (m_size + objects.size());
+        collectEntries (m_root, entries);
+        for (T object: objects)
+            entries.add (new Entry (object));
+
+        m_root = packTree (entries);
+        m_size = entries.size();
+    }
+
+    @Override
+    public boolean remove (T object) {
+        Entry probe = new Entry (object);
+        List<RNode> path = new ArrayList<> ();
+        if (!findLeaf (m_root, probe, path))
+            return false;
+
+        RNode leaf = path.get(path.size() - 1);
+        for (int i = 0; i < leaf.m_items.size(); i++) {
+            if (entryObject (leaf.m_items.get(i)) == object) {
+                leaf.m_items.remove (i);
+                break;
+            }
+        }
+
+        condenseTree (path);
+        m_size--;
+        return true;
+    }
+
+    @Override
+    public List<T> search (LatLon latlon) {
+        if (m_size == 0)
+            return null;
+        return searchNode (m_root, latlon, null);
+    }
+
+    public int size () {
+        return m_size;
+    }
+
+    private List<T> searchNode (RNode node, LatLon ll, List<T> list) {
+        double lat = ll.lat();
+        double lon = ll.lon();
+        for (Box box: node.m_items) {
+            if (!box.contains (lat, lon))
+                continue;
+            if (!node.m_leaf) {
+                list = searchNode ((RNode) box, ll, list);
+                continue;
+            }
+            T object = entryObject (box);
+            if (object.containsPoint (ll)) {
+                if (list == null) {
+                    list = new ArrayList<> (5);
+                }
+                list.add (object);
+            }
+        }
+        return list;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T entryObject (Box box) {
+        return ((Entry) box).m_object;
+    }
+
+    private void collectEntries (RNode node, List<Box> entries) {
+        if (node.m_leaf) {
+            entries.addAll (node.m_items);
+            return;
+        }
+        for (Box box: node.m_items)
+            collectEntries ((RNode) box, entries);
+    }
+
+    private boolean findLeaf (RNode node, Entry probe, List<RNode> path) {
+        path.add (node);
+        for (Box box: node.m_items) {
+            if (node.m_leaf) {
+                if (entryObject (box) == probe.m_object)
+                    return true;
+            }
+            else if (box.containsBox (probe) && findLeaf ((RNode) box, probe, path)) {
+                return true;
+            }
+        }
+        path.remove (path.size() - 1);
+        return false;
+    }
+
+    /**
+     * Shrinks bounding boxes along the path from root to a leaf after removal.
+     * Underfilled nodes are dropped and their entries are inserted again.
+     * @param path Path from root to the leaf the entry was removed from
+     */
+    @SuppressWarnings("unchecked")
+    private void condenseTree (List<RNode> path) {
+        List<Box> orphans = new ArrayList<> ();
+
+        for (int i = path.size() - 1; i > 0; i--) {
+            RNode node = path.get(i);
+            if (node.m_items.size() < minNodeEntries) {
+                path.get(i - 1).m_items.remove (node);
+                collectEntries (node, orphans);
+            }
+            else {
+                node.recompute ();
+            }
+        }
+
+        m_root.recompute ();
+        while (!m_root.m_leaf && m_root.m_items.size() == 1)
+            m_root = (RNode) m_root.m_items.get(0);
+        if (m_root.m_items.isEmpty())
+            m_root = new RNode (true);
+
+        for (Box box: orphans)
+            insert ((Entry) box);
+    }
+
+    private void insert (Entry entry) {
+        RNode sibling = insert (m_root, entry);
+        if (sibling != null) {
+            RNode root = new RNode (false);
+            root.add (m_root);
+            root.add (sibling);
+            m_root = root;
+        }
+    }
+
+    private RNode insert (RNode node, Entry entry) {
+        if (node.m_leaf) {
+            node.add (entry);
+        }
+        else {
+            RNode child = chooseSubtree (node, entry);
+            RNode sibling = insert (child, entry);
+            node.extend (entry);
+            if (sibling != null)
+                node.add (sibling);
+        }
+
+        if (node.m_items.size() > maxNodeEntries)
+            return splitNode (node);
+        return null;
+    }
+
+    private RNode chooseSubtree (RNode node, Box box) {
+        RNode best = null;
+        double best_enlargement = 0;
+        double best_area = 0;
+        for (Box item: node.m_items) {
+            double area = item.area();
+            double enlargement = item.unionArea (box) - area;
+            if (best == null || enlargement < best_enlargement ||
+                (enlargement == best_enlargement && area < best_area)) {
+                best = (RNode) item;
+                best_enlargement = enlargement;
+                best_area = area;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Quadratic split, moves part of node items to a new sibling node.
+     * @param node Overflowed node
+     * @return New sibling node
+     */
+    private RNode splitNode (RNode node) {
+        List<Box> items = new ArrayList<> (node.m_items);
+
+        // pick seeds wasting the most area
+        int seed1 = 0;
+        int seed2 = 1;
+        double worst = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < items.size(); i++) {
+            for (int j = i + 1; j < items.size(); j++) {
+                Box a = items.get(i);
+                Box b = items.get(j);
+                double waste = a.unionArea (b) - a.area() - b.area();
+                if (waste > worst) {
+                    worst = waste;
+                    seed1 = i;
+                    seed2 = j;
+                }
+            }
+        }
+
+        RNode group1 = node;
+        RNode group2 = new RNode (node.m_leaf);
+        Box b2 = items.remove (seed2);
+        Box b1 = items.remove (seed1);
+        group1.clear ();
+        group1.add (b1);
+        group2.add (b2);
+
+        while (!items.isEmpty()) {
+
+            // guarantee minimal fill of both groups
+            if (group1.m_items.size() + items.size() <= minNodeEntries) {
+                for (Box box: items)
+                    group1.add (box);
+                break;
+            }
+            if (group2.m_items.size() + items.size() <= minNodeEntries) {
+                for (Box box: items)
+                    group2.add (box);
+                break;
+            }
+
+            // pick item with the strongest preference for one group
+            int next = 0;
+            double max_diff = Double.NEGATIVE_INFINITY;
+            double next_d1 = 0;
+            double next_d2 = 0;
+            for (int i = 0; i < items.size(); i++) {
+                Box box = items.get(i);
+                double d1 = group1.unionArea (box) - group1.area();
+                double d2 = group2.unionArea (box) - group2.area();
+                double diff = Math.abs (d1 - d2);
+                if (diff > max_diff) {
+                    max_diff = diff;
+                    next = i;
+                    next_d1 = d1;
+                    next_d2 = d2;
+                }
+            }
+
+            Box box = items.remove (next);
+            if (next_d1 < next_d2 ||
+                (next_d1 == next_d2 && group1.area() < group2.area()) ||
+                (next_d1 == next_d2 && group1.area() == group2.area() && group1.m_items.size() <= group2.m_items.size())) {
+                group1.add (box);
+            }
+            else {
+                group2.add (box);
+            }
+        }
+
+        return group2;
+    }
+
+    private static RNode packTree (List<Box> entries) {
+        List<Box> level = packLevel (entries, true);
+        while (level.size() > 1)
+            level = packLevel (level, false);
+        return (RNode) level.get(0);
+    }
+
+    /**
+     * Sort-Tile-Recursive packing of one tree level.
+     * @param items Items of the level, must not be empty
+     * @param leaf Whether the items are leaf entries
+     * @return List of nodes packing the given items
+     */
+    private static List<Box> packLevel (List<Box> items, boolean leaf) {
+        int node_count = (items.size() + maxNodeEntries - 1) / maxNodeEntries;
+        int slice_count = (int) Math.ceil (Math.sqrt (node_count));
+        int slice_size = slice_count * maxNodeEntries;
+
+        items.sort (Comparator.comparingDouble (Box::centerLon));
+
+        List<Box> nodes = new ArrayList<> (node_count);
+        for (int i = 0; i < items.size(); i += slice_size) {
+            List<Box> slice = items.subList (i, Math.min (i + slice_size, items.size()));
+            slice.sort (Comparator.comparingDouble (Box::centerLat));
+            for (int j = 0; j < slice.size(); j += maxNodeEntries) {
+                RNode node = new RNode (leaf);
+                for (Box box: slice.subList (j, Math.min (j + maxNodeEntries, slice.size())))
+                    node.add (box);
+                nodes.add (node);
+            }
+        }
+        return nodes;
+    }
+
+    private abstract static class Box {
+        double m_minLat;
+        double m_minLon;
+        double m_maxLat;
+        double m_maxLon;
+
+        boolean contains (double lat, double lon) {
+            return lat >= m_minLat && lat <= m_maxLat && lon >= m_minLon && lon <= m_maxLon;
+        }
+
+        boolean containsBox (Box b) {
+            return b.m_minLat >= m_minLat && b.m_maxLat <= m_maxLat && b.m_minLon >= m_minLon && b.m_maxLon <= m_maxLon;
+        }
+
+        double area () {
+            return (m_maxLat - m_minLat) * (m_maxLon - m_minLon);
+        }
+
+        double unionArea (Box b) {
+            return (Math.max (m_maxLat, b.m_maxLat) - Math.min (m_minLat, b.m_minLat)) *
+                (Math.max (m_maxLon, b.m_maxLon) - Math.min (m_minLon, b.m_minLon));
+        }
+
+        double centerLat () {
+            return (m_minLat + m_maxLat) / 2;
+        }
+
+        double centerLon () {
+            return (m_minLon + m_maxLon) / 2;
+        }
+    }
+
+    private final class Entry extends Box {
+        private final T m_object;
+
+        Entry (T object) {
+            BBox bbox = object.getBBox();
+            m_object = object;
+            m_minLat = bbox.getBottomRightLat();
+            m_minLon = bbox.getTopLeftLon();
+            m_maxLat = bbox.getTopLeftLat();
+            m_maxLon = bbox.getBottomRightLon();
+        }
+    }
+
+    private static final class RNode extends Box {
+        private final boolean m_leaf;
+        private final List<Box> m_items;
+
+        RNode (boolean leaf) {
+            m_leaf = leaf;
+            m_items = new ArrayList<> (maxNodeEntries + 1);
+            clear ();
+        }
+
+        void add (Box box) {
+            m_items.add (box);
+            extend (box);
+        }
+
+        void extend (Box box) {
+            m_minLat = Math.min (m_minLat, box.m_minLat);
+            m_minLon = Math.min (m_minLon, box.m_minLon);
+            m_maxLat = Math.max (m_maxLat, box.m_maxLat);
+            m_maxLon = Math.max (m_maxLon, box.m_maxLon);
+        }
+
+        void recompute () {
+            m_minLat = Double.POSITIVE_INFINITY;
+            m_minLon = Double.POSITIVE_INFINITY;
+            m_maxLat = Double.NEGATIVE_INFINITY;
+            m_maxLon = Double.NEGATIVE_INFINITY;
+            for (Box box: m_items)
+                extend (box);
+        }
+
+        final void clear () {
+            m_items.clear ();
+            m_minLat = Double.POSITIVE_INFINITY;
+            m_minLon = Double.POSITIVE_INFINITY;
+            m_maxLat = Double.NEGATIVE_INFINITY;
+            m_maxLon = Double.NEGATIVE_INFINITY;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/**
+ *  Tracer - plugin for JOSM
+ *  Jan Bilak, Marian Kyral, Martin Svec
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.openstreetmap.josm.plugins.tracer;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.plugins.tracer.connectways.LatLonSize;
+
+/**
+ * Background prefetch of tiles around traced positions and in the visible map area,
+ * used by modules whose servers can answer area queries. Works like LpisPrefetch,
+ * but the tile download is delegated to {@link ITileLoader}. Tiles are downloaded
+ * with bounded concurrency, tiles nearest to the last click go first. Prefetched
+ * tiles are downloaded again after given time to live.
+ */
+public class TilePrefetch {
+
+    public interface ITileLoader {
+        /**
+         * Downloads all records in the tile and puts them into a cache.
+         * @param bounds Bounds of the tile
+         * @throws Exception Download failed
+         */
+        void loadTile (Bounds bounds) throws Exception;
+    }
+
+    // priority penalty of viewport tiles, in tile units
+    private static final double viewportPenalty = 2.0;
+
+    private final String m_name;
+    private final LatLonSize m_tileSize;
+    private final ITileLoader m_loader;
+    private final ExecutorService m_executor;
+    private final int m_maxConcurrency;
+    private final int m_maxViewportTiles;
+    private final long m_ttlMillis;
+
+    private final Object m_lock = new Object ();
+    private final Map<QuadCache.QuadIndex, Long> m_prefetchedTiles = new HashMap<> (); // m_lock, time of download
+    private final Set<QuadCache.QuadIndex> m_runningTiles = new HashSet<> ();        // m_lock
+    private final Map<QuadCache.QuadIndex, Double> m_queuedTiles = new HashMap<> ();  // m_lock, priority
+    private PriorityQueue<PrefetchTile> m_queue = new PriorityQueue<> ();            // m_lock
+
+    /**
+     * Constructor
+     * @param name Name used in log messages
+     * @param tile_size Size of prefetched tiles
+     * @param loader Tile loader
+     * @param executor Executor running the downloads, can be shared with other tasks
+     * @param max_concurrency Maximal number of tiles downloaded at once
+     * @param max_viewport_tiles Maximal number of tiles prefetched in the visible area, larger areas are ignored
+     * @param ttl_millis Time after which a prefetched tile is downloaded again, zero means never
+     */
+    public TilePrefetch (String name, LatLonSize tile_size, ITileLoader loader, ExecutorService executor,
+            int max_concurrency, int max_viewport_tiles, long ttl_millis) {
+        m_name = name;
+        m_tileSize = tile_size;
+        m_loader = loader;
+        m_executor = executor;
+        m_maxConcurrency = Math.max (1, max_concurrency);
+        m_maxViewportTiles = max_viewport_tiles;
+        m_ttlMillis = ttl_millis;
+    }
+
+    /**
+     * Schedules prefetch of tiles around the traced position and in the visible map area.
+     * Queued tiles which are neither near the position nor visible are dropped.
+     * @param pos Traced position
+     * @param viewport Visible map area, can be null
+     */
+    public void schedulePrefetch (LatLon pos, Bounds viewport) {
+        QuadCache.QuadIndex qi = QuadCache.QuadIndex.latLonToQuadIndex(m_tileSize, pos.lat(), pos.lon());
+        double lat = (pos.lat() + 90) / m_tileSize.latSize();
+        double lon = (pos.lon() + 180) / m_tileSize.lonSize();
+
+        synchronized (m_lock) {
+            m_queuedTiles.clear ();
+
+            // neighbourhood of the position
+            for (long dlat = -1; dlat <= 1; dlat++) {
+                for (long dlon = -1; dlon <= 1; dlon++) {
+                    QuadCache.QuadIndex aqi = new QuadCache.QuadIndex (qi.iLat() + dlat, qi.iLon() + dlon);
+                    enqueue (aqi, distance (aqi, lat, lon));
+                }
+            }
+
+            // visible area, if it isn't too large
+            if (viewport != null && m_maxViewportTiles > 0) {
+                QuadCache.QuadIndex min = QuadCache.QuadIndex.latLonToQuadIndex(m_tileSize, viewport.getMinLat(), viewport.getMinLon());
+                QuadCache.QuadIndex max = QuadCache.QuadIndex.latLonToQuadIndex(m_tileSize, viewport.getMaxLat(), viewport.getMaxLon());
+                long count = (max.iLat() - min.iLat() + 1) * (max.iLon() - min.iLon() + 1);
+                if (count <= m_maxViewportTiles) {
+                    for (long ilat = min.iLat(); ilat <= max.iLat(); ilat++) {
+                        for (long ilon = min.iLon(); ilon <= max.iLon(); ilon++) {
+                            QuadCache.QuadIndex aqi = new QuadCache.QuadIndex (ilat, ilon);
+                            enqueue (aqi, distance (aqi, lat, lon) + viewportPenalty);
+                        }
+                    }
+                }
+                else {
+                    System.out.println (m_name + " prefetch: viewport too large, tiles: " + Long.toString(count));
+                }
+            }
+
+            // reprioritize
+            PriorityQueue<PrefetchTile> queue = new PriorityQueue<> ();
+            for (Map.Entry<QuadCache.QuadIndex, Double> entry: m_queuedTiles.entrySet())
+                queue.add (new PrefetchTile (entry.getKey(), entry.getValue()));
+            m_queue = queue;
+
+            dispatch ();
+        }
+    }
+
+    /**
+     * Forgets all prefetched tiles, e.g. when the cache of downloaded records was cleared.
+     */
+    public void invalidate () {
+        synchronized (m_lock) {
+            m_prefetchedTiles.clear ();
+        }
+    }
+
+    private void enqueue (QuadCache.QuadIndex qi, double priority) {
+        if (m_runningTiles.contains(qi) || isPrefetched (qi))
+            return;
+        Double old = m_queuedTiles.get(qi);
+        if (old == null || priority < old)
+            m_queuedTiles.put (qi, priority);
+    }
+
+    private boolean isPrefetched (QuadCache.QuadIndex qi) {
+        Long time = m_prefetchedTiles.get(qi);
+        if (time == null)
+            return false;
+        if (m_ttlMillis > 0 && System.currentTimeMillis() - time > m_ttlMillis) {
+            m_prefetchedTiles.remove (qi);
+            return false;
+        }
+        return true;
+    }
+
+    private static double distance (QuadCache.QuadIndex qi, double lat, double lon) {
+        double dlat = qi.iLat() + 0.5 - lat;
+        double dlon = qi.iLon() + 0.5 - lon;
+        return Math.sqrt (dlat * dlat + dlon * dlon);
+    }
+
+    private void dispatch () {
+        while (m_runningTiles.size() < m_maxConcurrency && !m_queue.isEmpty()) {
+            final QuadCache.QuadIndex qi = m_queue.poll().m_qi;
+            m_queuedTiles.remove (qi);
+            if (isPrefetched (qi))
+                continue;
+            m_runningTiles.add (qi);
+            m_executor.submit(new Runnable () {
+                @Override
+                public void run() {
+                    prefetchTask (qi);
+                }
+            });
+        }
+    }
+
+    private void prefetchTask (QuadCache.QuadIndex qi) {
+        boolean succeeded = false;
+        try {
+            succeeded = downloadTile (qi);
+        }
+        finally {
+            synchronized (m_lock) {
+                m_runningTiles.remove (qi);
+                if (succeeded) {
+                    m_prefetchedTiles.put (qi, System.currentTimeMillis());
+                }
+                dispatch ();
+            }
+        }
+    }
+
+    private boolean downloadTile (QuadCache.QuadIndex qi) {
+        System.out.println (m_name + " prefetch: downloading tile: " + qi.toString());
+
+        double lat = (double)qi.iLat() * m_tileSize.latSize() - 90;
+        double lon = (double)qi.iLon() * m_tileSize.lonSize() - 180;
+        try {
+            m_loader.loadTile (new Bounds (lat, lon, lat + m_tileSize.latSize(), lon + m_tileSize.lonSize()));
+        }
+        catch (Exception e) {
+            System.out.println (m_name + " prefetch: tile " + qi.toString() + " failed: " + e.getMessage());
+            return false;
+        }
+
+        return true;
+    }
+
+    private static final class PrefetchTile implements Comparable<PrefetchTile> {
+        private final QuadCache.QuadIndex m_qi;
+        private final double m_priority;
+
+        PrefetchTile (QuadCache.QuadIndex qi, double priority) {
+            m_qi = qi;
+            m_priority = priority;
+        }
+
+        @Override
+        public int compareTo (PrefetchTile other) {
+            return Double.compare (m_priority, other.m_priority);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/**
+ *  Tracer - plugin for JOSM
+ *  Jan Bilak, Marian Kyral, Martin Svec
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.openstreetmap.josm.plugins.tracer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import javax.swing.SwingUtilities;
+import org.openstreetmap.josm.actions.downloadtasks.DownloadOsmTask;
+import org.openstreetmap.josm.actions.downloadtasks.DownloadParams;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.gui.MainApplication;
+
+/**
+ * Coordinates tracer tasks started by rapid clicks. Each click enters the pipeline
+ * and gets a sequence number. Record downloads of later clicks run while earlier
+ * clicks are downloading OSM data or creating polygons. Missing area downloads
+ * requested at the same time are merged into as few DownloadOsmTasks as possible,
+ * and traced polygons are committed in EDT strictly in order of clicks.
+ */
+final class TracePipeline {
+
+    interface IAreaDownloadListener {
+        /**
+         * Called in worker thread when the requested area was downloaded.
+         * @param cancelled true if the download was cancelled by the user
+         */
+        void areaDownloaded (boolean cancelled);
+    }
+
+    private static final TracePipeline m_instance = new TracePipeline ();
+
+    // placeholder of dropped traces in m_readyCommits
+    private static final Runnable droppedTrace = new Runnable () {
+        @Override
+        public void run() {
+        }
+    };
+
+    private static final long tracesPerMinuteWindowNanos = 60L * 1000 * 1000 * 1000;
+
+    private final Object m_lock = new Object ();
+
+    private long m_nextSeq;                                          // m_lock
+    private long m_nextCommitSeq;                                    // m_lock
+    private final Map<Long, Runnable> m_readyCommits = new HashMap<> (); // m_lock, finished traces waiting for earlier clicks
+    private final Map<Long, Long> m_clickTimes = new HashMap<> ();   // m_lock
+
+    private final List<PendingArea> m_pendingAreas = new ArrayList<> ();     // m_lock
+    private final List<AreaDownload> m_runningDownloads = new ArrayList<> (); // m_lock
+    private boolean m_flushScheduled;                                // m_lock
+
+    private final ArrayDeque<Long> m_commitTimes = new ArrayDeque<> (); // m_lock, commit times during last minute
+    private long m_committedTraces;                                  // m_lock
+    private long m_mergedDownloads;                                  // m_lock
+
+    private TracePipeline () {
+    }
+
+    static TracePipeline getInstance () {
+        return m_instance;
+    }
+
+    /**
+     * Registers new click.
+     * @return Sequence number of the click
+     */
+    long enter () {
+        synchronized (m_lock) {
+            long seq = m_nextSeq++;
+            m_clickTimes.put (seq, System.nanoTime());
+            return seq;
+        }
+    }
+
+    /**
+     * Schedules final step of the trace. The step runs in EDT after all previous
+     * clicks were committed or dropped.
+     * @param seq Sequence number of the click
+     * @param step Step creating the traced polygon
+     */
+    void commit (long seq, Runnable step) {
+        synchronized (m_lock) {
+            m_readyCommits.put (seq, step);
+            drainCommits ();
+        }
+    }
+
+    /**
+     * Removes click from the pipeline without committing anything, e.g. if no data
+     * are available or the trace was cancelled.
+     * @param seq Sequence number of the click
+     */
+    void drop (long seq) {
+        synchronized (m_lock) {
+            m_readyCommits.put (seq, droppedTrace);
+            drainCommits ();
+        }
+    }
+
+    private void drainCommits () {
+        // invokeLater() is called under the lock, so EDT gets steps in order of clicks
+        while (m_readyCommits.containsKey (m_nextCommitSeq)) {
+            final long seq = m_nextCommitSeq++;
+            final Runnable step = m_readyCommits.remove (seq);
+            final Long click_time = m_clickTimes.remove (seq);
+            if (step == droppedTrace)
+                continue;
+            SwingUtilities.invokeLater (new Runnable () {
+                @Override
+                public void run() {
+                    try {
+                        step.run ();
+                    }
+                    finally {
+                        traceCommitted (click_time);
+                    }
+                }
+            });
+        }
+    }
+
+    private void traceCommitted (Long click_time) {
+        synchronized (m_lock) {
+            long now = System.nanoTime();
+            m_commitTimes.add (now);
+            while (now - m_commitTimes.peek() > tracesPerMinuteWindowNanos)
+                m_commitTimes.poll();
+            ++m_committedTraces;
+            long latency_msecs = click_time == null ? 0 : (now - click_time) / (1000 * 1000);
+            System.out.println ("TracePipeline: committed traces: " + Long.toString(m_committedTraces) +
+                ", traces per minute: " + Integer.toString(m_commitTimes.size()) +
+                ", click latency (ms): " + Long.toString(latency_msecs) +
+                ", merged downloads: " + Long.toString(m_mergedDownloads));
+        }
+    }
+
+    /**
+     * Returns number of traces committed during the last minute.
+     * @return Traces per minute
+     */
+    int getTracesPerMinute () {
+        synchronized (m_lock) {
+            long now = System.nanoTime();
+            while (!m_commitTimes.isEmpty() && now - m_commitTimes.peek() > tracesPerMinuteWindowNanos)
+                m_commitTimes.poll();
+            return m_commitTimes.size();
+        }
+    }
+
+    /**
+     * Requests download of missing OSM area. Must be called in worker thread.
+     * If a running download already covers the area, it's reused. Otherwise the area
+     * is merged with other areas requested before the next download starts.
+     * @param area Missing area
+     * @param listener Listener called in worker thread after the download
+     */
+    void requestArea (Bounds area, IAreaDownloadListener listener) {
+        synchronized (m_lock) {
+            for (AreaDownload download: m_runningDownloads) {
+                if (contains (download.m_bounds, area)) {
+                    System.out.println ("TracePipeline: area covered by running download");
+                    ++m_mergedDownloads;
+                    waitForDownload (download, listener);
+                    return;
+                }
+            }
+
+            m_pendingAreas.add (new PendingArea (area, listener));
+            if (m_flushScheduled)
+                return;
+            m_flushScheduled = true;
+        }
+
+        MainApplication.worker.submit (new Runnable () {
+            @Override
+            public void run() {
+                flushPendingAreas ();
+            }
+        });
+    }
+
+    private void flushPendingAreas () {
+        synchronized (m_lock) {
+            m_flushScheduled = false;
+
+            // merge overlapping areas
+            List<PendingGroup> groups = new ArrayList<> ();
+            for (PendingArea pending: m_pendingAreas) {
+                PendingGroup group = new PendingGroup (pending);
+                boolean merged = true;
+                while (merged) {
+                    merged = false;
+                    for (int i = 0; i < groups.size(); i++) {
+                        PendingGroup other = groups.get(i);
+                        if (intersects (other.m_bounds, group.m_bounds)) {
+                            group.merge (other);
+                            groups.remove (i);
+                            merged = true;
+                            break;
+                        }
+                    }
+                }
+                groups.add (group);
+            }
+            m_mergedDownloads += m_pendingAreas.size() - groups.size();
+            m_pendingAreas.clear ();
+
+            for (PendingGroup group: groups) {
+                DownloadOsmTask task = new DownloadOsmMissingAreaTask();
+                Future<?> future = task.download(new DownloadParams(), group.m_bounds, null);
+                // Note: we don't start PostDownloadHandler after download because we're
+                // not interested in download errors.
+                AreaDownload download = new AreaDownload (group.m_bounds, task, future);
+                m_runningDownloads.add (download);
+                System.out.println ("TracePipeline: downloading area for " + Integer.toString(group.m_listeners.size()) +
+                    " trace(s): " + group.m_bounds.toString());
+                for (IAreaDownloadListener listener: group.m_listeners)
+                    waitForDownload (download, listener);
+            }
+        }
+    }
+
+    private void waitForDownload (final AreaDownload download, final IAreaDownloadListener listener) {
+        MainApplication.worker.submit (new Runnable () {
+            @Override
+            public void run() {
+                try {
+                    download.m_future.get();
+                } catch (Exception e) {}
+                synchronized (m_lock) {
+                    m_runningDownloads.remove (download);
+                }
+                listener.areaDownloaded (download.m_task.isCanceled());
+            }
+        });
+    }
+
+    private static boolean contains (Bounds outer, Bounds inner) {
+        return outer.getMinLat() <= inner.getMinLat() && outer.getMaxLat() >= inner.getMaxLat() &&
+            outer.getMinLon() <= inner.getMinLon() && outer.getMaxLon() >= inner.getMaxLon();
+    }
+
+    private static boolean intersects (Bounds a, Bounds b) {
+        return a.getMinLat() <= b.getMaxLat() && b.getMinLat() <= a.getMaxLat() &&
+            a.getMinLon() <= b.getMaxLon() && b.getMinLon() <= a.getMaxLon();
+    }
+
+    private static final class PendingArea {
+        private final Bounds m_bounds;
+        private final IAreaDownloadListener m_listener;
+
+        PendingArea (Bounds bounds, IAreaDownloadListener listener) {
+            m_bounds = bounds;
+            m_listener = listener;
+        }
+    }
+
+    private static final class PendingGroup {
+        private final Bounds m_bounds;
+        private final List<IAreaDownloadListener> m_listeners = new ArrayList<> ();
+
+        PendingGroup (PendingArea pending) {
+            m_bounds = new Bounds (pending.m_bounds);
+            m_listeners.add (pending.m_listener);
+        }
+
+        void merge (PendingGroup other) {
+            m_bounds.extend (other.m_bounds);
+            m_listeners.addAll (other.m_listeners);
+        }
+    }
+
+    private static final class AreaDownload {
+        private final Bounds m_bounds;
+        private final DownloadOsmTask m_task;
+        private final Future<?> m_future;
+
+        AreaDownload (Bounds bounds, DownloadOsmTask task, Future<?> future) {
+            m_bounds = bounds;
+            m_task = task;
+            m_future = future;
+        }
+    }
+}
@@ -97,6 +97,11 @@ class TracerAction extends MapMode implements MouseListener, KeyListener {
                     }
                 }
                 break;
+            case KeyEvent.VK_B: // B
+                if (mode == key_mode.KEY_PRESSED && MainApplication.getMap().mapView.isActiveLayerDrawable()) {
+                    traceBatch();
+                }
+                break;
             case KeyEvent.VK_ALT: // alt
             case KeyEvent.VK_CONTROL: // control
             case KeyEvent.VK_SHIFT: // shift
@@ -114,6 +119,17 @@ class TracerAction extends MapMode implements MouseListener, KeyListener {
         tracer_task.run();
     }
 
+    protected void traceBatch() {
+        TracerModule module = m_modules.getActiveModule();
+        if (!(module instanceof IBatchTracerModule)) {
+            TracerUtils.showNotification(tr("Tracer: Module {0} doesn''t support tracing of all objects in an area.", module.getName()), "warning");
+            return;
+        }
+        BatchTracerTask batch_task = BatchTracerTask.fromSelection(module);
+        if (batch_task != null)
+            batch_task.run();
+    }
+
     @Override
     public void mouseClicked(MouseEvent e) {
     }
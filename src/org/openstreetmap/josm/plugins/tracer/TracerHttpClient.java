@@ -0,0 +1,314 @@
+/**
+ *  Tracer - plugin for JOSM
+ *  Jan Bilak, Marian Kyral, Martin Svec
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.openstreetmap.josm.plugins.tracer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.Authenticator;
+import java.net.MalformedURLException;
+import java.net.ProxySelector;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import org.openstreetmap.josm.io.auth.DefaultAuthenticator;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+/**
+ * Shared keep-alive HTTP client of all tracer server calls. One client with its
+ * own connection pool is kept per host and connect timeout, HTTP/2 is used
+ * when the server supports it, HTTP/1.1 otherwise. Clients use JOSM proxy
+ * settings and authenticator.
+ *
+ * The JDK client has no pool limit, so open requests are limited per host by
+ * a semaphore instead (tracer.http.pool_size); a permit is held until the
+ * response body is closed. Idle connections are closed after the JDK default
+ * keep-alive timeout, it can be set only JVM-wide.
+ */
+final class TracerHttpClient {
+
+    private static final Map<String, HttpClient> m_clients = new HashMap<> ();
+    private static final Map<String, Semaphore> m_hostPermits = new HashMap<> ();
+
+    private static final ThreadFactory m_threadFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "tracer-http");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    // threads are bounded by the host permits
+    private static final ExecutorService m_executor = Executors.newCachedThreadPool(m_threadFactory);
+
+    // interrupts body reads exceeding the read timeout
+    private static final ScheduledThreadPoolExecutor m_watchdog = new ScheduledThreadPoolExecutor(1, m_threadFactory);
+
+    static {
+        m_watchdog.setRemoveOnCancelPolicy(true);
+    }
+
+    private TracerHttpClient () {
+    }
+
+    private static HttpClient getClient (URI uri, int timeout) {
+        String key = uri.getScheme() + "://" + uri.getAuthority() + "|" + Integer.toString(timeout);
+        synchronized (m_clients) {
+            HttpClient client = m_clients.get(key);
+            if (client == null) {
+                HttpClient.Builder builder = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_2)
+                    .followRedirects(HttpClient.Redirect.NORMAL)
+                    .connectTimeout(Duration.ofMillis(timeout))
+                    .executor(m_executor);
+                ProxySelector proxy = ProxySelector.getDefault();
+                if (proxy != null)
+                    builder.proxy(proxy);
+                Authenticator auth = DefaultAuthenticator.getInstance();
+                if (auth != null)
+                    builder.authenticator(auth);
+                client = builder.build();
+                m_clients.put(key, client);
+            }
+            return client;
+        }
+    }
+
+    private static Permit acquirePermit (URI uri, int timeout) throws IOException {
+        String host = uri.getScheme() + "://" + uri.getAuthority();
+        Semaphore semaphore;
+        synchronized (m_hostPermits) {
+            semaphore = m_hostPermits.get(host);
+            if (semaphore == null) {
+                semaphore = new Semaphore(Math.max(1, Config.getPref().getInt("tracer.http.pool_size", 8)), true);
+                m_hostPermits.put(host, semaphore);
+            }
+        }
+        try {
+            if (timeout <= 0)
+                semaphore.acquire();
+            else if (!semaphore.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+                throw new SocketTimeoutException("No free connection to " + host);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Request interrupted: " + host);
+        }
+        return new Permit(semaphore);
+    }
+
+    /**
+     * Send GET request and return the response body stream.
+     * @param url Url to open
+     * @param timeout Connect, response and body read timeout in milliseconds
+     * @param headers Request headers, key/value pairs
+     * @return Response, body reads fail with SocketTimeoutException after timeout
+     * @throws java.io.IOException Input/Output issue or error status returned
+     */
+    static HttpResponse<InputStream> get (String url, int timeout, String... headers) throws IOException {
+        URI uri;
+        try {
+            uri = new URI(url);
+        }
+        catch (URISyntaxException e) {
+            throw new MalformedURLException(e.getMessage());
+        }
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+            .timeout(Duration.ofMillis(timeout))
+            .GET();
+        for (int i = 0; i + 1 < headers.length; i += 2)
+            builder.header(headers[i], headers[i + 1]);
+
+        Permit permit = acquirePermit(uri, timeout);
+        HttpResponse<InputStream> response;
+        try {
+            response = getClient(uri, timeout).send(builder.build(), readTimeoutBodyHandler(timeout, permit));
+        }
+        catch (InterruptedException e) {
+            permit.release();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Request interrupted: " + url);
+        }
+        catch (IOException | RuntimeException e) {
+            permit.release();
+            throw e;
+        }
+
+        if (response.statusCode() >= 400) {
+            response.body().close();
+            throw new IOException("Server returned HTTP response code: " + Integer.toString(response.statusCode()) + " for URL: " + url);
+        }
+        return response;
+    }
+
+    private static HttpResponse.BodyHandler<InputStream> readTimeoutBodyHandler (final int timeout, final Permit permit) {
+        return new HttpResponse.BodyHandler<InputStream>() {
+            @Override
+            public HttpResponse.BodySubscriber<InputStream> apply(HttpResponse.ResponseInfo info) {
+                return HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofInputStream(),
+                    new Function<InputStream, InputStream>() {
+                        @Override
+                        public InputStream apply(InputStream stream) {
+                            return new ReadTimeoutInputStream(stream, timeout, permit);
+                        }
+                    });
+            }
+        };
+    }
+
+    /**
+     * Host permit of one request, released once.
+     */
+    private static final class Permit {
+        private final Semaphore m_semaphore;
+        private final AtomicBoolean m_released = new AtomicBoolean();
+
+        Permit(Semaphore semaphore) {
+            m_semaphore = semaphore;
+        }
+
+        void release() {
+            if (m_released.compareAndSet(false, true))
+                m_semaphore.release();
+        }
+    }
+
+    /**
+     * Body stream with read timeout, which JDK client doesn't support. A read
+     * blocked longer than the timeout is interrupted and the stream is closed,
+     * which cancels the exchange. Closing the stream releases the host permit.
+     */
+    private static final class ReadTimeoutInputStream extends FilterInputStream {
+        private final int m_timeout;
+        private final Permit m_permit;
+        private Thread m_reader;     // thread blocked in read, guarded by this
+        private boolean m_timedOut;  // guarded by this
+
+        ReadTimeoutInputStream(InputStream in, int timeout, Permit permit) {
+            super(in);
+            m_timeout = timeout;
+            m_permit = permit;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            }
+            finally {
+                m_permit.release();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            ScheduledFuture<?> watchdog = beginRead();
+            try {
+                return super.read();
+            }
+            catch (IOException e) {
+                throw timeoutOr(e);
+            }
+            finally {
+                endRead(watchdog);
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            ScheduledFuture<?> watchdog = beginRead();
+            try {
+                return super.read(b, off, len);
+            }
+            catch (IOException e) {
+                throw timeoutOr(e);
+            }
+            finally {
+                endRead(watchdog);
+            }
+        }
+
+        private ScheduledFuture<?> beginRead() throws IOException {
+            synchronized (this) {
+                if (m_timedOut)
+                    throw new SocketTimeoutException("Read timed out");
+                m_reader = Thread.currentThread();
+            }
+            if (m_timeout <= 0)
+                return null;
+            return m_watchdog.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    timeout();
+                }
+            }, m_timeout, TimeUnit.MILLISECONDS);
+        }
+
+        private void endRead(ScheduledFuture<?> watchdog) {
+            if (watchdog != null)
+                watchdog.cancel(false);
+            synchronized (this) {
+                m_reader = null;
+                // clear interrupt sent by the watchdog
+                if (m_timedOut)
+                    Thread.interrupted();
+            }
+        }
+
+        private void timeout() {
+            synchronized (this) {
+                if (m_reader == null || m_timedOut)
+                    return;
+                m_timedOut = true;
+                m_reader.interrupt();
+            }
+            try {
+                in.close();
+            }
+            catch (IOException e) {
+            }
+        }
+
+        private synchronized IOException timeoutOr(IOException e) {
+            if (!m_timedOut)
+                return e;
+            SocketTimeoutException ex = new SocketTimeoutException("Read timed out");
+            ex.initCause(e);
+            return ex;
+        }
+    }
+}
@@ -20,13 +20,12 @@ package org.openstreetmap.josm.plugins.tracer;
 
 import java.awt.Cursor;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import javax.swing.JOptionPane;
-import org.openstreetmap.josm.actions.downloadtasks.DownloadOsmTask;
-import org.openstreetmap.josm.actions.downloadtasks.DownloadParams;
 import org.openstreetmap.josm.command.Command;
 import org.openstreetmap.josm.command.SequenceCommand;
 import org.openstreetmap.josm.data.Bounds;
@@ -41,7 +40,6 @@ import org.openstreetmap.josm.gui.MainApplication;
 import org.openstreetmap.josm.gui.PleaseWaitRunnable;
 import org.openstreetmap.josm.gui.dialogs.relation.DownloadRelationTask;
 import static org.openstreetmap.josm.tools.I18n.tr;
-import org.openstreetmap.josm.gui.util.GuiHelper;
 import org.openstreetmap.josm.io.OsmTransferException;
 import org.openstreetmap.josm.plugins.tracer.connectways.EdMultipolygon;
 import org.openstreetmap.josm.plugins.tracer.connectways.EdNode;
@@ -49,6 +47,7 @@ import org.openstreetmap.josm.plugins.tracer.connectways.EdObject;
 import org.openstreetmap.josm.plugins.tracer.connectways.EdWay;
 import org.openstreetmap.josm.plugins.tracer.connectways.LatLonSize;
 import org.openstreetmap.josm.plugins.tracer.connectways.WayEditor;
+import org.openstreetmap.josm.plugins.tracer.connectways.WayEditorSession;
 import org.xml.sax.SAXException;
 
 enum TracerTaskStep {
@@ -65,6 +64,11 @@ enum TracerTaskStep {
  */
 
 public abstract class TracerModule {
+
+    // Tasks with asynchronous record download in order of clicks, shared by all modules.
+    // Completed downloads continue on the worker in this order, see asyncDownloadFinished().
+    private static final ArrayDeque<AbstractTracerTask> m_asyncDownloadTasks = new ArrayDeque<>();
+
     /**
      *  Function for initialization
      */
@@ -116,7 +120,7 @@ public abstract class TracerModule {
     public abstract class AbstractTracerTask {
 
         TracerTaskStep m_taskStep;
-        private boolean m_cancelled;
+        private volatile boolean m_cancelled;
 
         protected final LatLon m_pos;
         protected final boolean m_ctrl;
@@ -129,11 +133,20 @@ public abstract class TracerModule {
         protected boolean m_updateTagsOnly;
 
         private TracerRecord m_record;
+        private boolean m_batchMode;
+
+        // sequence number in TracePipeline, the task leaves the pipeline exactly once
+        private long m_pipelineSeq;
+        private boolean m_pipelineLeft;
+
+        // asynchronous download state, guarded by m_asyncDownloadTasks
+        private boolean m_asyncDownloadFinished;
+        private boolean m_asyncDownloadSucceeded;
 
         private static final double resurrectNodesDistanceMeters = 10.0;
         private static final double defaultAutomaticOsmDownloadMeters = 500.0;
 
-        private final PostTraceNotifications m_postTraceNotifications = new PostTraceNotifications();
+        private PostTraceNotifications m_postTraceNotifications = new PostTraceNotifications();
 
         protected AbstractTracerTask (LatLon pos, boolean ctrl, boolean alt, boolean shift) {
             this.m_taskStep = TracerTaskStep.ttsInit;
@@ -154,34 +167,63 @@ public abstract class TracerModule {
         public void run () {
             if (m_taskStep != TracerTaskStep.ttsInit)
                 throw new AssertionError("Tracer task already in progress");
+            m_pipelineSeq = TracePipeline.getInstance().enter();
             nextStep ();
         }
 
         private void nextStep () {
 
-            if (m_cancelled)
+            if (m_cancelled) {
+                leavePipeline ();
                 return;
+            }
 
-            switch (m_taskStep) {
-                case ttsInit:
-                    stepDownloadRecord ();
-                    break;
-                case ttsDownloadRecord:
-                    stepDownloadMissingArea ();
-                    break;
-                case ttsDownloadMissingArea:
-                    stepDownloadIncompleteMultipolygons ();
-                    break;
-                case ttsDownloadIncompleteMultipolygons:
-                    stepCreateTracedPolygon ();
-                    break;
-                case ttsCreateTracedPolygon:
-                    throw new AssertionError ("Internal error, no next step available");
-                default:
-                    throw new AssertionError ("Unknown TracerTaskStep");
+            try {
+                switch (m_taskStep) {
+                    case ttsInit:
+                        stepDownloadRecord ();
+                        break;
+                    case ttsDownloadRecord:
+                        stepDownloadMissingArea ();
+                        break;
+                    case ttsDownloadMissingArea:
+                        stepDownloadIncompleteMultipolygons ();
+                        break;
+                    case ttsDownloadIncompleteMultipolygons:
+                        stepCreateTracedPolygon ();
+                        break;
+                    case ttsCreateTracedPolygon:
+                        throw new AssertionError ("Internal error, no next step available");
+                    default:
+                        throw new AssertionError ("Unknown TracerTaskStep");
+                }
+            }
+            catch (RuntimeException | Error e) {
+                // never block later clicks
+                leavePipeline ();
+                throw e;
             }
         }
 
+        private synchronized void leavePipeline () {
+            if (m_pipelineLeft)
+                return;
+            m_pipelineLeft = true;
+            TracePipeline.getInstance().drop(m_pipelineSeq);
+        }
+
+        private synchronized void commitPipeline (Runnable step) {
+            // task may be cancelled from EDT after the last m_cancelled check
+            if (m_pipelineLeft)
+                return;
+            m_pipelineLeft = true;
+            if (m_cancelled) {
+                TracePipeline.getInstance().drop(m_pipelineSeq);
+                return;
+            }
+            TracePipeline.getInstance().commit(m_pipelineSeq, step);
+        }
+
         /**
          * Returns ExecutorService to be used for background asynchronous download of a traced record.
          * @return An ExecutorService instance if the download should run on background. Null if
@@ -196,29 +238,48 @@ public abstract class TracerModule {
             System.out.println("----- Trace -----");
             System.out.println("");
 
+            boolean succeeded = false;
             try {
                 m_record = downloadRecord(m_pos);
+                succeeded = true;
             }
             catch (final Exception e) {
                 e.printStackTrace();
                 TracerUtils.showNotification(tr("{0} download failed ({1}).\nException: {2}", getName(), m_pos.toDisplayString(), e.getLocalizedMessage()), "error");
-                return;
+            }
+            finally {
+                if (!succeeded)
+                    leavePipeline ();
+                if (async)
+                    asyncDownloadFinished (succeeded);
             }
 
-            if (!async) {
+            if (succeeded && !async)
                 nextStep ();
-                return;
-            }
+        }
 
+        private void asyncDownloadFinished (boolean succeeded) {
             // Explicitly serialize subsequent tasks after asynchronous download.
             // This reduces the chance that the same area/relation downloads are
-            // triggered multiple times.
-            MainApplication.worker.submit (new Runnable () {
-                @Override
-                public void run() {
-                    nextStep ();
+            // triggered multiple times. Downloads can finish in any order, but
+            // tasks are passed to the worker in order of clicks, so a fast mapper
+            // can pipeline several traces.
+            synchronized (m_asyncDownloadTasks) {
+                m_asyncDownloadFinished = true;
+                m_asyncDownloadSucceeded = succeeded;
+
+                while (!m_asyncDownloadTasks.isEmpty() && m_asyncDownloadTasks.peek().m_asyncDownloadFinished) {
+                    final AbstractTracerTask task = m_asyncDownloadTasks.poll();
+                    if (!task.m_asyncDownloadSucceeded)
+                        continue;
+                    MainApplication.worker.submit (new Runnable () {
+                        @Override
+                        public void run() {
+                            task.nextStep ();
+                        }
+                    });
                 }
-            });
+            }
         }
 
         private void stepDownloadRecord () {
@@ -230,6 +291,9 @@ public abstract class TracerModule {
 
             // run as background asynchronous task
             if (exec != null) {
+                synchronized (m_asyncDownloadTasks) {
+                    m_asyncDownloadTasks.add(this);
+                }
                 exec.submit(new Runnable() {
                     @Override
                     public void run() {
@@ -244,6 +308,7 @@ public abstract class TracerModule {
                     @Override
                     protected void cancel() {
                         m_cancelled = true;
+                        leavePipeline ();
                     }
 
                     @Override
@@ -263,6 +328,7 @@ public abstract class TracerModule {
             // No data available?
             if (m_record == null || !m_record.hasData()) {
                 TracerUtils.showNotification(tr("Data not available.")+ "\n(" + m_pos.toDisplayString() + ")", "warning");
+                leavePipeline ();
                 return;
             }
 
@@ -279,12 +345,7 @@ public abstract class TracerModule {
                 return;
             }
 
-            // Schedule missing area download
-            final DownloadOsmTask task = new DownloadOsmMissingAreaTask();
-            final Future<?> future = task.download(new DownloadParams(), area, null);
-            // Note: we don't start PostDownloadHandler after download because we're
-            // not interested in download errors.
-
+            // Schedule missing area download, the pipeline merges it with areas of other clicks.
             // Note: be careful, this download doesn't guarantee that the required area will be available.
             // First, the download can fail at any time. Second, getMissingAreaToDownload() doesn't
             // consider object retracing. That is, if the retraced object is significantly different
@@ -293,17 +354,14 @@ public abstract class TracerModule {
             // object might be an incomplete multipolygon that is not downloaded yet. So, we ignore these
             // corner cases here and all modules still must must carefully check if data bounds requirements
             // are satisfied.
-            MainApplication.worker.submit(new Runnable() {
+            TracePipeline.getInstance().requestArea(area, new TracePipeline.IAreaDownloadListener() {
                 @Override
-                    public void run() {
-                        try {
-                            future.get();
-                            if (task.isCanceled())
-                                m_cancelled = true;
-                        } catch (Exception e) {}
-                        nextStep ();
-                    }
-                });
+                public void areaDownloaded(boolean cancelled) {
+                    if (cancelled)
+                        m_cancelled = true;
+                    nextStep ();
+                }
+            });
         }
 
         private void stepDownloadIncompleteMultipolygons () {
@@ -340,15 +398,16 @@ public abstract class TracerModule {
 
             m_taskStep = TracerTaskStep.ttsCreateTracedPolygon;
 
-            GuiHelper.runInEDT(new Runnable() {
+            // runs in EDT after polygons of all previous clicks
+            commitPipeline(new Runnable() {
                 @Override
                 @SuppressWarnings("CallToPrintStackTrace")
                 public void run() {
                     long start_time = System.nanoTime();
                     DataSet data_set = MainApplication.getLayerManager().getEditDataSet();
                     data_set.beginUpdate();
+                    WayEditor editor = WayEditorSession.beginEdit (data_set);
                     try {
-                        WayEditor editor = new WayEditor (data_set);
                         EdObject object = createTracedPolygonImpl (editor);
                         if (object != null) {
                             finalizeEdit(editor, object);
@@ -360,6 +419,7 @@ public abstract class TracerModule {
                         throw e;
                     }
                     finally {
+                        WayEditorSession.endEdit (editor);
                         data_set.endUpdate();
                         long end_time = System.nanoTime();
                         long time_msecs = (end_time - start_time) / (1000*1000);
@@ -433,6 +493,10 @@ public abstract class TracerModule {
         }
 
         protected void wayIsOutsideDownloadedAreaDialog() {
+            if (m_batchMode) {
+                postTraceNotifications().add(tr("Object at {0} is outside of the downloaded area.", m_pos.toDisplayString()));
+                return;
+            }
             ExtendedDialog ed = new ExtendedDialog(
                 MainApplication.getMainFrame(), tr("Way is outside downloaded area"),
                 new String[] {tr("Ok")});
@@ -442,6 +506,36 @@ public abstract class TracerModule {
             ed.showDialog();
         }
 
+        /**
+         * Prepares the task to trace already downloaded record within a batch.
+         * @param record Record to trace
+         * @param notifications Notifications shared by all tasks of the batch
+         */
+        void setBatchRecord(TracerRecord record, PostTraceNotifications notifications) {
+            if (m_taskStep != TracerTaskStep.ttsInit)
+                throw new AssertionError("Tracer task already in progress");
+            m_record = record;
+            m_postTraceNotifications = notifications;
+            m_batchMode = true;
+            m_taskStep = TracerTaskStep.ttsCreateTracedPolygon;
+        }
+
+        Bounds getBatchMissingArea(DataSet ds) {
+            LatLonSize downloadsize = LatLonSize.get (m_pos, this.getAutomaticOsmDownloadMeters ());
+            LatLonSize extrasize = this.getMissingAreaCheckExtraSize(m_pos);
+            return m_record.getMissingAreaToDownload(ds, extrasize, downloadsize);
+        }
+
+        List<Relation> getBatchIncompleteMultipolygons() {
+            if (!m_performClipping)
+                return null;
+            return getIncompleteMultipolygonsForDownload ();
+        }
+
+        EdObject createBatchTracedPolygon(WayEditor editor) {
+            return createTracedPolygonImpl (editor);
+        }
+
         protected TracerRecord getRecord() {
             if (m_record == null)
                 throw new IllegalStateException("Record is null");
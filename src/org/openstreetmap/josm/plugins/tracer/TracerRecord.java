@@ -18,11 +18,15 @@
 
 package org.openstreetmap.josm.plugins.tracer;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.RandomAccess;
 import java.util.Set;
 import jakarta.json.JsonArray;
 import jakarta.json.JsonObject;
@@ -33,23 +37,30 @@ import org.openstreetmap.josm.data.coor.EastNorth;
 import org.openstreetmap.josm.data.coor.LatLon;
 import org.openstreetmap.josm.data.osm.BBox;
 import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.projection.Projection;
 import org.openstreetmap.josm.data.projection.ProjectionRegistry;
 import static org.openstreetmap.josm.tools.I18n.tr;
 import org.openstreetmap.josm.plugins.tracer.connectways.BBoxUtils;
+import org.openstreetmap.josm.plugins.tracer.connectways.BoundsCoverage;
 import org.openstreetmap.josm.plugins.tracer.connectways.EdMultipolygon;
 import org.openstreetmap.josm.plugins.tracer.connectways.EdNode;
 import org.openstreetmap.josm.plugins.tracer.connectways.EdObject;
 import org.openstreetmap.josm.plugins.tracer.connectways.EdWay;
 import org.openstreetmap.josm.plugins.tracer.connectways.GeomUtils;
 import org.openstreetmap.josm.plugins.tracer.connectways.LatLonSize;
+import org.openstreetmap.josm.plugins.tracer.connectways.PreparedPolygon;
 import org.openstreetmap.josm.plugins.tracer.connectways.WayEditor;
 
 public abstract class TracerRecord implements IQuadCacheObject {
 
-    private List<LatLon> m_outer;
-    private List<List<LatLon>> m_inners;
+    private Ring m_outer;
+    private List<Ring> m_inners;
     private BBox m_bbox;
 
+    // lazily projected rings for containsPoint(), built under lock of this record
+    private volatile ProjectedRings m_projectedRings;
+    private volatile IMemorySizeListener m_memorySizeListener;
+
     private final double m_adjustLat;
     private final double m_adjustLon;
 
@@ -64,6 +75,7 @@ public abstract class TracerRecord implements IQuadCacheObject {
     protected void init() {
         m_outer = null;
         m_inners = new ArrayList<>();
+        m_projectedRings = null;
     }
 
     /**
@@ -73,7 +85,7 @@ public abstract class TracerRecord implements IQuadCacheObject {
     public final List <LatLon> getOuter() {
         if (!hasOuter())
             throw new IllegalStateException("No outer geometry available");
-        return Collections.unmodifiableList(m_outer);
+        return m_outer;
     }
 
     /**
@@ -97,7 +109,7 @@ public abstract class TracerRecord implements IQuadCacheObject {
      *  @return inner polygons
      */
     public final List<List<LatLon>> getInners() {
-        return Collections.unmodifiableList(m_inners);
+        return Collections.<List<LatLon>>unmodifiableList(m_inners);
     }
 
     /**
@@ -112,13 +124,11 @@ public abstract class TracerRecord implements IQuadCacheObject {
     }
 
     private void updateBBox () {
-        List<LatLon> outer = this.getOuter();
-        LatLon p0 = outer.get(0);
+        double[] outer = m_outer.m_coords;
 
-        BBox bbox = new BBox(p0.lon(), p0.lat());
-        for (int i = 1; i < outer.size(); i++) {
-            LatLon p = outer.get(i);
-            bbox.add(p.lon(), p.lat());
+        BBox bbox = new BBox(outer[1], outer[0]);
+        for (int i = 2; i < outer.length; i += 2) {
+            bbox.add(outer[i + 1], outer[i]);
         }
 
         m_bbox = bbox;
@@ -126,21 +136,24 @@ public abstract class TracerRecord implements IQuadCacheObject {
 
     protected final void setOuter(List<LatLon> outer) {
         m_outer = adjustWay (outer);
+        m_projectedRings = null;
         updateBBox ();
     }
 
     protected final void addInner(List<LatLon> inner) {
         m_inners.add(adjustWay (inner));
+        m_projectedRings = null;
     }
 
     public abstract boolean hasData();
 
-    private List<LatLon> adjustWay(List<LatLon> way) {
+    private Ring adjustWay(List<LatLon> way) {
 
         if (way == null)
             throw new IllegalArgumentException("Null way");
 
-        List<LatLon> list = new ArrayList<>(way.size());
+        double[] coords = new double[2 * way.size()];
+        int n = 0;
         boolean adj = m_adjustLat != 0.0 && m_adjustLon != 0;
         final double precision = GeomUtils.duplicateNodesPrecision();
         LatLon prev_coor = null;
@@ -157,14 +170,66 @@ public abstract class TracerRecord implements IQuadCacheObject {
             if (GeomUtils.duplicateNodes(latlon, prev_coor, precision))
                 continue;
 
-            list.add(latlon);
+            coords[n++] = latlon.lat();
+            coords[n++] = latlon.lon();
             prev_coor = latlon;
         }
 
-        if (list.size() <= 3) // we assume closed way here
+        if (n <= 2 * 3) // we assume closed way here
             throw new IllegalStateException("Way consists of less than 3 nodes");
 
-        return list;
+        return new Ring (n == coords.length ? coords : Arrays.copyOf(coords, n));
+    }
+
+    /**
+     * Closed way stored as packed [lat0, lon0, lat1, lon1, ...] array. It's an
+     * unmodifiable list view, LatLon objects are created on access.
+     */
+    private static final class Ring extends AbstractList<LatLon> implements RandomAccess {
+        private final double[] m_coords;
+        private int m_hash;
+
+        Ring (double[] coords) {
+            m_coords = coords;
+        }
+
+        @Override
+        public LatLon get(int index) {
+            if (index < 0 || index >= size())
+                throw new IndexOutOfBoundsException(Integer.toString(index));
+            return new LatLon(m_coords[2 * index], m_coords[2 * index + 1]);
+        }
+
+        @Override
+        public int size() {
+            return m_coords.length / 2;
+        }
+
+        double lat(int index) {
+            return m_coords[2 * index];
+        }
+
+        double lon(int index) {
+            return m_coords[2 * index + 1];
+        }
+
+        // rings are used as hash keys of records without id
+        @Override
+        public int hashCode() {
+            int h = m_hash;
+            if (h == 0) {
+                h = super.hashCode();
+                m_hash = h;
+            }
+            return h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof Ring)
+                return Arrays.equals(m_coords, ((Ring)o).m_coords);
+            return super.equals(o);
+        }
     }
 
     public EdObject createObject (WayEditor editor) {
@@ -190,7 +255,7 @@ public abstract class TracerRecord implements IQuadCacheObject {
         EdMultipolygon multipolygon = editor.newMultipolygon();
         multipolygon.addOuterWay(outer_way);
 
-        for (List<LatLon> inner_rls: m_inners) {
+        for (Ring inner_rls: m_inners) {
             List<EdNode> inner_nodes = new ArrayList<>(inner_rls.size());
             for (int i = 0; i < inner_rls.size() - 1; i++) {
                 inner_nodes.add(editor.newNode(inner_rls.get(i)));
@@ -257,24 +322,164 @@ public abstract class TracerRecord implements IQuadCacheObject {
     }
 
     public Set<LatLon> getAllCoors() {
-        Set<LatLon> result = new HashSet<>();
+        int count = hasOuter() ? m_outer.size() : 0;
+        for (Ring inner: m_inners)
+            count += inner.size();
+        Set<LatLon> result = new HashSet<>(2 * count);
         if (hasOuter())
             result.addAll(m_outer);
-        for (List<LatLon> inner: m_inners) {
+        for (Ring inner: m_inners) {
             result.addAll(inner);
         }
         return result;
     }
 
+    /**
+     * Listener of changes of {@link #getEstimatedMemorySize()} caused by lazily
+     * built caches of the record.
+     */
+    public interface IMemorySizeListener {
+        /**
+         * Called when the estimated size changed, in the thread which changed it.
+         * @param record Changed record
+         * @param delta Difference of the estimated size in bytes
+         */
+        void memorySizeChanged (TracerRecord record, long delta);
+    }
+
+    public void setMemorySizeListener (IMemorySizeListener listener) {
+        m_memorySizeListener = listener;
+    }
+
+    /**
+     * Returns rough estimate of heap memory occupied by the record. Lazily built
+     * caches are included once they exist, so the value can grow after the
+     * record was added to a cache, see {@link IMemorySizeListener}.
+     * @return Estimated size in bytes
+     */
+    public long getEstimatedMemorySize() {
+        // record header, bbox and list of inners
+        long size = 128;
+        if (hasOuter())
+            size += estimatedWayMemorySize(m_outer);
+        for (Ring inner: m_inners)
+            size += estimatedWayMemorySize(inner);
+        ProjectedRings rings = m_projectedRings;
+        if (rings != null)
+            size += rings.m_polygon.getEstimatedMemorySize();
+        return size;
+    }
+
+    private static long estimatedWayMemorySize(Ring way) {
+        // Ring and array headers, two doubles per node
+        return 48 + 8 * (long)way.m_coords.length;
+    }
+
+    /**
+     * Returns a point lying inside the traced area. Used when the record was not
+     * traced from a click position, e.g. in batch tracing.
+     * @return Point inside the area or null if the area is degenerated
+     */
+    public LatLon getInteriorPoint() {
+        LatLon center = getBBox().getCenter();
+        if (containsPoint (center))
+            return center;
+
+        // Scan lines between two neighbouring vertex latitudes don't pass through
+        // any vertex, so their crossings pair into inside spans. Try the one
+        // nearest to the center, then the one in the widest gap.
+        double[] lats = new double[m_outer.size()];
+        for (int i = 0; i < lats.length; i++)
+            lats[i] = m_outer.lat(i);
+        Arrays.sort (lats);
+
+        double center_lat = Double.NaN;
+        double wide_lat = Double.NaN;
+        double best_gap = 0;
+        for (int i = 1; i < lats.length; i++) {
+            double gap = lats[i] - lats[i - 1];
+            if (gap <= 0)
+                continue;
+            double lat = (lats[i - 1] + lats[i]) / 2;
+            if (Double.isNaN(center_lat) || Math.abs(lat - center.lat()) < Math.abs(center_lat - center.lat()))
+                center_lat = lat;
+            if (gap > best_gap) {
+                best_gap = gap;
+                wide_lat = lat;
+            }
+        }
+
+        for (double lat: new double[] { center_lat, wide_lat }) {
+            if (Double.isNaN(lat))
+                continue;
+            LatLon pos = scanLineInteriorPoint (lat);
+            if (pos != null && containsPoint (pos))
+                return pos;
+        }
+        return null;
+    }
+
+    private LatLon scanLineInteriorPoint (double lat) {
+        List<Double> crossings = new ArrayList<>();
+        addScanLineCrossings (m_outer, lat, crossings);
+        for (Ring inner: m_inners)
+            addScanLineCrossings (inner, lat, crossings);
+        Collections.sort (crossings);
+
+        // middle of the widest inside span
+        double best_width = 0;
+        LatLon best = null;
+        for (int i = 0; i + 1 < crossings.size(); i += 2) {
+            double width = crossings.get(i + 1) - crossings.get(i);
+            if (width > best_width) {
+                best_width = width;
+                best = new LatLon (lat, (crossings.get(i) + crossings.get(i + 1)) / 2);
+            }
+        }
+        return best;
+    }
+
+    private static void addScanLineCrossings (Ring way, double lat, List<Double> crossings) {
+        for (int i = 1; i < way.size(); i++) {
+            double lat0 = way.lat(i - 1);
+            double lat1 = way.lat(i);
+            if ((lat0 <= lat) == (lat1 <= lat))
+                continue;
+            crossings.add(way.lon(i - 1) + (lat - lat0) * (way.lon(i) - way.lon(i - 1)) / (lat1 - lat0));
+        }
+    }
+
     public Bounds getMissingAreaToDownload(DataSet ds, LatLonSize extrasize, LatLonSize downloadsize) {
 
         List<Bounds> bounds = ds.getDataSourceBounds();
         Bounds result = null;
 
+        // whole record including extra size already downloaded?
+        BoundsCoverage coverage = BoundsCoverage.get(bounds);
+        if (coverage != null && hasOuter ()) {
+            BBox bbox = getBBox();
+            double min_lat = bbox.getBottomRightLat();
+            double max_lat = bbox.getTopLeftLat();
+            double min_lon = bbox.getTopLeftLon();
+            double max_lon = bbox.getBottomRightLon();
+            for (Ring inner: m_inners) {
+                for (int i = 0; i < inner.size(); i++) {
+                    min_lat = Math.min(min_lat, inner.lat(i));
+                    max_lat = Math.max(max_lat, inner.lat(i));
+                    min_lon = Math.min(min_lon, inner.lon(i));
+                    max_lon = Math.max(max_lon, inner.lon(i));
+                }
+            }
+            if (coverage.covers(
+                    min_lat - extrasize.latSize(), min_lon - extrasize.lonSize(),
+                    max_lat + extrasize.latSize(), max_lon + extrasize.lonSize()))
+                return null;
+        }
+
         if (hasOuter ())
             result = includeMissingAreaToDownload (m_outer, bounds, result, extrasize, downloadsize);
 
-        for (List<LatLon> inner: m_inners)
+        for (Ring inner: m_inners)
             result = includeMissingAreaToDownload (inner, bounds, result, extrasize, downloadsize);
 
         return result;
@@ -323,66 +528,79 @@ public abstract class TracerRecord implements IQuadCacheObject {
         if (!bbox.bounds(latlon))
             return false;
 
-        // must be inside outer way
-        if (!polygonContainsPoint (this.getOuter(), latlon))
-            return false;
+        ProjectedRings rings = getProjectedRings();
+        EastNorth en = rings.m_projection.latlon2eastNorth(latlon);
+        return rings.m_polygon.containsPoint(en.getX(), en.getY());
+    }
 
-        // must not be inside inner ways
-        for (List<LatLon> inner: this.getInners()) {
-            if (polygonContainsPoint (inner, latlon))
-                return false;
+    /**
+     * Outer and inner rings projected to east/north by given projection, without
+     * consecutive duplicate points. The outer ring is the first one.
+     */
+    private static final class ProjectedRings {
+        private final Projection m_projection;
+        private final Object m_cacheKey;
+        private final PreparedPolygon m_polygon;
+
+        ProjectedRings(Projection projection, double[][] rings) {
+            m_projection = projection;
+            m_cacheKey = projection.getCacheKey();
+            m_polygon = new PreparedPolygon(rings);
         }
 
-        return true;
+        boolean isValidFor(Projection projection) {
+            return m_projection == projection || Objects.equals(m_cacheKey, projection.getCacheKey());
+        }
     }
 
-    private boolean polygonContainsPoint(List<LatLon> way, LatLon latlon) {
-        // (stolen from JOSM's Geometry, nodeInsidePolygon)
+    private ProjectedRings getProjectedRings () {
+        Projection projection = ProjectionRegistry.getProjection();
+        ProjectedRings rings = m_projectedRings;
+        if (rings != null && rings.isValidFor(projection))
+            return rings;
+
+        long delta;
+        synchronized (this) {
+            ProjectedRings old = m_projectedRings;
+            if (old != null && old.isValidFor(projection))
+                return old;
+
+            double[][] arr = new double[1 + m_inners.size()][];
+            arr[0] = projectRing (projection, m_outer);
+            for (int i = 0; i < m_inners.size(); i++)
+                arr[i + 1] = projectRing (projection, m_inners.get(i));
+
+            // the index would be built by the first query anyway, build it now to report its size
+            rings = new ProjectedRings (projection, arr);
+            rings.m_polygon.prepare();
+            m_projectedRings = rings;
+            delta = rings.m_polygon.getEstimatedMemorySize() - (old == null ? 0 : old.m_polygon.getEstimatedMemorySize());
+        }
 
-        if (way.size() < 2)
-            return false;
+        IMemorySizeListener listener = m_memorySizeListener;
+        if (listener != null)
+            listener.memorySizeChanged (this, delta);
+        return rings;
+    }
 
-        boolean inside = false;
-        EastNorth p1, p2;
-        EastNorth pointEn = getEastNorth (latlon);
+    private static double[] projectRing (Projection projection, Ring way) {
+        if (way.size() < 2)
+            return new double[0];
 
-        // iterate each side of the polygon, start with the last segment
-        LatLon oldPoint = way.get(way.size() - 1);
-        EastNorth oldEn = getEastNorth(oldPoint);
+        double[] xy = new double[2 * way.size()];
+        int n = 0;
 
-        for (LatLon newPoint : way) {
-            //skip duplicate points
-            if (newPoint.equals(oldPoint)) {
+        //skip consecutive duplicate points
+        int old = way.size() - 1;
+        for (int i = 0; i < way.size(); i++) {
+            if (way.lat(i) == way.lat(old) && way.lon(i) == way.lon(old))
                 continue;
-            }
-
-            EastNorth newEn = getEastNorth(newPoint);
-
-            // order points so p1.lat <= p2.lat
-            if (newEn.getY() > oldEn.getY()) {
-                p1 = oldEn;
-                p2 = newEn;
-            } else {
-                p1 = newEn;
-                p2 = oldEn;
-            }
-
-            //test if the line is crossed and if so invert the inside flag.
-            if ((newEn.getY() < pointEn.getY()) == (pointEn.getY() <= oldEn.getY())
-                && (pointEn.getX() - p1.getX()) * (p2.getY() - p1.getY())
-                < (p2.getX() - p1.getX()) * (pointEn.getY() - p1.getY()))
-            {
-                inside = !inside;
-            }
-
-            oldPoint = newPoint;
-            oldEn = newEn;
+            EastNorth en = projection.latlon2eastNorth(way.get(i));
+            xy[n++] = en.getX();
+            xy[n++] = en.getY();
+            old = i;
         }
 
-        return inside;
-    }
-
-    private EastNorth getEastNorth (LatLon latlon) {
-        return ProjectionRegistry.getProjection().latlon2eastNorth(latlon);
+        return n == xy.length ? xy : Arrays.copyOf(xy, n);
     }
 }
@@ -20,15 +20,27 @@
 package org.openstreetmap.josm.plugins.tracer;
 
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
-import java.net.URI;
-import java.net.URLConnection;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import javax.swing.JOptionPane;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.MapFrame;
 import org.openstreetmap.josm.gui.Notification;
 import org.openstreetmap.josm.gui.util.GuiHelper;
+import org.openstreetmap.josm.plugins.tracer.connectways.LatLonSize;
+import org.openstreetmap.josm.spi.preferences.Config;
+import static org.openstreetmap.josm.tools.I18n.tr;
 
 
 public abstract class TracerUtils {
@@ -88,6 +100,7 @@ public abstract class TracerUtils {
     }
 
     private final static int defaultStreamTimeout = 10000;
+    private final static int streamBufferSize = 16384;
 
     public static BufferedReader openUrlStream (String url, int timeout) throws IOException {
         return openUrlStream (url, timeout, null);
@@ -102,29 +115,124 @@ public abstract class TracerUtils {
     }
 
     public static BufferedReader openUrlStream (String url, int timeout, String charset) throws MalformedURLException, IOException {
-        URLConnection conn = null;
-        boolean succeeded = false;
-        try {
-             conn = URI.create(url).toURL().openConnection();
+        InputStream stream = openHttpStream (url, timeout);
+        InputStreamReader isr = charset != null ?
+                new InputStreamReader(stream, charset) : new InputStreamReader(stream);
+        return new BufferedReader(isr);
+    }
 
-             // set timeouts
-             conn.setConnectTimeout(timeout);
-             conn.setReadTimeout(timeout);
+    public static InputStream openHttpStream (String url) throws IOException {
+        return openHttpStream (url, defaultStreamTimeout);
+    }
+
+    /**
+     * Open raw response stream of the given url. Connections are pooled and kept alive
+     * between calls, see {@link TracerHttpClient}. Gzip and deflate content
+     * encodings are negotiated and the stream is decompressed transparently,
+     * so parsers can consume the response directly.
+     * @param url Url to open
+     * @param timeout Connect and response timeout in milliseconds
+     * @return Decoded response stream, caller must close it
+     * @throws java.net.MalformedURLException Wrong url
+     * @throws java.io.IOException Input/Output issue
+     */
+    public static InputStream openHttpStream (String url, int timeout) throws MalformedURLException, IOException {
+        HttpResponse<InputStream> response = TracerHttpClient.get(url, timeout, "Accept-Encoding", "gzip, deflate");
 
-             InputStreamReader isr = charset != null ?
-                     new InputStreamReader(conn.getInputStream(), charset) : new InputStreamReader(conn.getInputStream());
-             BufferedReader reader = new BufferedReader(isr);
-             succeeded = true;
-             return reader;
+        InputStream stream = response.body();
+        boolean succeeded = false;
+        try {
+            String encoding = response.headers().firstValue("Content-Encoding").orElse(null);
+            InputStream result;
+            if ("gzip".equalsIgnoreCase(encoding))
+                result = new GZIPInputStream(stream, streamBufferSize);
+            else if ("deflate".equalsIgnoreCase(encoding))
+                result = new InflaterInputStream(stream, new Inflater(), streamBufferSize) {
+                    // custom inflater is not released by InflaterInputStream itself
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        }
+                        finally {
+                            inf.end();
+                        }
+                    }
+                };
+            else
+                result = new BufferedInputStream(stream, streamBufferSize);
+            succeeded = true;
+            return result;
         }
         finally {
-            if (!succeeded && conn != null) {
+            if (!succeeded) {
                 try {
-                    conn.getInputStream().close();
+                    stream.close();
                 }
                 catch (IOException e) {
                 }
             }
         }
     }
+
+    /**
+     * Returns bounds of the visible map area. Must be called in EDT thread.
+     * @return Visible bounds or null if there's no map view
+     */
+    public static Bounds getVisibleBounds () {
+        MapFrame map = MainApplication.getMap();
+        if (map == null || map.mapView == null)
+            return null;
+        return map.mapView.getRealBounds();
+    }
+
+    /**
+     * Splits bounds into tiles of given size aligned to the tile grid, used for area queries
+     * of servers limiting size of the queried area.
+     * @param bounds Bounds to split
+     * @param tile_size Size of tiles
+     * @param max_tiles Maximal number of tiles
+     * @return List of tile bounds covering the bounds
+     * @throws IllegalArgumentException The bounds are too large
+     */
+    public static List<Bounds> splitBounds (Bounds bounds, LatLonSize tile_size, int max_tiles) {
+        long min_ilat = (long)Math.floor((bounds.getMinLat() + 90) / tile_size.latSize());
+        long min_ilon = (long)Math.floor((bounds.getMinLon() + 180) / tile_size.lonSize());
+        long max_ilat = (long)Math.floor((bounds.getMaxLat() + 90) / tile_size.latSize());
+        long max_ilon = (long)Math.floor((bounds.getMaxLon() + 180) / tile_size.lonSize());
+
+        long count = (max_ilat - min_ilat + 1) * (max_ilon - min_ilon + 1);
+        if (count > max_tiles)
+            throw new IllegalArgumentException(tr("The area is too large."));
+
+        List<Bounds> list = new ArrayList<> ((int)count);
+        for (long ilat = min_ilat; ilat <= max_ilat; ilat++) {
+            for (long ilon = min_ilon; ilon <= max_ilon; ilon++) {
+                double lat = (double)ilat * tile_size.latSize() - 90;
+                double lon = (double)ilon * tile_size.lonSize() - 180;
+                list.add(new Bounds (lat, lon, lat + tile_size.latSize(), lon + tile_size.lonSize()));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Returns server timeout configured for the module by tracer.&lt;module&gt;.timeout preference.
+     * @param module Module preference prefix
+     * @param dflt Default timeout in milliseconds
+     * @return Timeout in milliseconds
+     */
+    public static int getModuleTimeout (String module, int dflt) {
+        int timeout = Config.getPref().getInt("tracer." + module + ".timeout", dflt);
+        return timeout > 0 ? timeout : dflt;
+    }
+
+    /**
+     * Returns server timeout configured for the module by tracer.&lt;module&gt;.timeout preference.
+     * @param module Module preference prefix
+     * @return Timeout in milliseconds
+     */
+    public static int getModuleTimeout (String module) {
+        return getModuleTimeout (module, defaultStreamTimeout);
+    }
  }
@@ -26,6 +26,9 @@ import org.openstreetmap.josm.data.osm.BBox;
 
 public abstract class BBoxUtils {
 
+    // more bounds are tested by BoundsCoverage
+    private static final int linearMaxBounds = 4;
+
     public static void extendBBox(BBox box, LatLonSize oversize) {
         box.add(box.getTopLeftLon() - oversize.lonSize(), box.getBottomRightLat() - oversize.latSize());
         box.add(box.getBottomRightLon() + oversize.lonSize(), box.getTopLeftLat() + oversize.latSize());
@@ -47,6 +50,11 @@ public abstract class BBoxUtils {
     }
 
     private static boolean isInsideBounds(LatLon p, List<Bounds> bounds) {
+        if (bounds.size() > linearMaxBounds) {
+            BoundsCoverage coverage = BoundsCoverage.get(bounds);
+            if (coverage != null)
+                return coverage.contains(p.lat(), p.lon());
+        }
         for (Bounds b: bounds) {
             if (b.contains(p))
                 return true;
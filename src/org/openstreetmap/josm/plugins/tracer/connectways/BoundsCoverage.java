@@ -0,0 +1,180 @@
+/**
+ *  Tracer - plugin for JOSM
+ *  Jan Bilak, Marian Kyral, Martin Svec
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.openstreetmap.josm.plugins.tracer.connectways;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import org.openstreetmap.josm.data.Bounds;
+
+/**
+ * Union of data source bounds for fast inside/outside tests. Edges of all bounds
+ * split lat and lon axes into elementary parts (breakpoints and open intervals
+ * between them), a bitmap marks covered parts. A point test is two binary
+ * searches, same inclusive semantics as Bounds.contains().
+ *
+ * The last used coverage is cached and reused while the DataSet bounds don't
+ * change, so consecutive traces don't rebuild it.
+ */
+public final class BoundsCoverage {
+
+    // bitmap grows with square of bounds count, larger lists are scanned linearly
+    private static final int maxIndexedBounds = 512;
+
+    private static volatile CacheEntry m_cache;
+
+    private final List<Bounds> m_bounds;
+    private final double[] m_lats; // sorted distinct breakpoints
+    private final double[] m_lons;
+    private final int m_cols;
+    private final BitSet m_cells;
+
+    private BoundsCoverage(List<Bounds> bounds) {
+        m_bounds = new ArrayList<>(bounds);
+
+        // bounds crossing 180th meridian are split into two rectangles
+        List<double[]> rects = new ArrayList<>(bounds.size());
+        for (Bounds b: bounds) {
+            if (b.crosses180thMeridian()) {
+                rects.add(new double[] { b.getMinLat(), b.getMinLon(), b.getMaxLat(), Double.POSITIVE_INFINITY });
+                rects.add(new double[] { b.getMinLat(), Double.NEGATIVE_INFINITY, b.getMaxLat(), b.getMaxLon() });
+            }
+            else {
+                rects.add(new double[] { b.getMinLat(), b.getMinLon(), b.getMaxLat(), b.getMaxLon() });
+            }
+        }
+
+        m_lats = breakpoints(rects, 0, 2);
+        m_lons = breakpoints(rects, 1, 3);
+        m_cols = Math.max(0, 2 * m_lons.length - 1);
+        m_cells = new BitSet();
+
+        for (double[] r: rects) {
+            int row0 = element(m_lats, r[0]);
+            int row1 = element(m_lats, r[2]);
+            int col0 = element(m_lons, r[1]);
+            int col1 = element(m_lons, r[3]);
+            for (int row = row0; row <= row1; row++)
+                m_cells.set(row * m_cols + col0, row * m_cols + col1 + 1);
+        }
+    }
+
+    /**
+     * Returns coverage of given bounds, cached coverage is reused if the bounds
+     * are the same list or an equal one.
+     * @param bounds Data source bounds
+     * @return Coverage or null if there are too many bounds to be indexed
+     */
+    public static BoundsCoverage get(List<Bounds> bounds) {
+        CacheEntry entry = m_cache;
+        if (entry != null && entry.m_list == bounds)
+            return entry.m_coverage;
+
+        if (bounds.size() > maxIndexedBounds)
+            return null;
+
+        BoundsCoverage coverage;
+        if (entry != null && entry.m_coverage.m_bounds.equals(bounds))
+            coverage = entry.m_coverage;
+        else
+            coverage = new BoundsCoverage(bounds);
+
+        m_cache = new CacheEntry(bounds, coverage);
+        return coverage;
+    }
+
+    /**
+     * Checks whether a point is inside any of the bounds.
+     * @param lat Latitude
+     * @param lon Longitude
+     * @return true if the point is covered
+     */
+    public boolean contains(double lat, double lon) {
+        int row = element(m_lats, lat);
+        int col = element(m_lons, lon);
+        if (row < 0 || col < 0)
+            return false;
+        return m_cells.get(row * m_cols + col);
+    }
+
+    /**
+     * Checks whether a rectangle is completely covered by union of the bounds.
+     * @param min_lat Minimal latitude
+     * @param min_lon Minimal longitude
+     * @param max_lat Maximal latitude
+     * @param max_lon Maximal longitude
+     * @return true if every point of the rectangle is covered
+     */
+    public boolean covers(double min_lat, double min_lon, double max_lat, double max_lon) {
+        int row0 = element(m_lats, min_lat);
+        int row1 = element(m_lats, max_lat);
+        int col0 = element(m_lons, min_lon);
+        int col1 = element(m_lons, max_lon);
+        if (row0 < 0 || row1 < 0 || col0 < 0 || col1 < 0)
+            return false;
+        for (int row = row0; row <= row1; row++) {
+            if (m_cells.nextClearBit(row * m_cols + col0) <= row * m_cols + col1)
+                return false;
+        }
+        return true;
+    }
+
+    private static double[] breakpoints(List<double[]> rects, int i1, int i2) {
+        double[] values = new double[2 * rects.size()];
+        int n = 0;
+        for (double[] r: rects) {
+            values[n++] = r[i1] + 0.0; // -0.0 -> 0.0, binary search distinguishes them
+            values[n++] = r[i2] + 0.0;
+        }
+        Arrays.sort(values);
+
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (distinct == 0 || values[distinct - 1] != values[i])
+                values[distinct++] = values[i];
+        }
+        return Arrays.copyOf(values, distinct);
+    }
+
+    /**
+     * Returns elementary part containing given value: 2*i for breakpoint i,
+     * 2*i+1 for open interval between breakpoints i and i+1, -1 outside.
+     */
+    private static int element(double[] breakpoints, double value) {
+        int idx = Arrays.binarySearch(breakpoints, value + 0.0);
+        if (idx >= 0)
+            return 2 * idx;
+        int ins = -idx - 1;
+        if (ins == 0 || ins == breakpoints.length)
+            return -1;
+        return 2 * ins - 1;
+    }
+
+    private static final class CacheEntry {
+        private final List<Bounds> m_list;
+        private final BoundsCoverage m_coverage;
+
+        CacheEntry(List<Bounds> list, BoundsCoverage coverage) {
+            m_list = list;
+            m_coverage = coverage;
+        }
+    }
+}
@@ -18,11 +18,15 @@
  */
 package org.openstreetmap.josm.plugins.tracer.connectways;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import org.openstreetmap.josm.data.coor.EastNorth;
 import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.projection.ProjectionRegistry;
 import org.openstreetmap.josm.plugins.tracer.PostTraceNotifications;
 import static org.openstreetmap.josm.tools.I18n.tr;
 
@@ -198,13 +202,18 @@ public class ClipObjectArea {
     }
 
     private boolean isPointInsideWay(List<EdNode> way, LatLon anchor) {
-        // #### fixme
-        return true;
+        PreparedPolygon polygon = PreparedPolygon.fromEdNodes(Collections.singletonList(way));
+        EastNorth en = ProjectionRegistry.getProjection().latlon2eastNorth(anchor);
+        return polygon.containsPoint(en.getX(), en.getY());
     }
 
     private boolean isPointInsideMultipolygon(List<List<EdNode>> outers, List<List<EdNode>> inners, LatLon anchor) {
-        // #### fixme
-        return true;
+        List<List<EdNode>> rings = new ArrayList<>(outers.size() + inners.size());
+        rings.addAll(outers);
+        rings.addAll(inners);
+        PreparedPolygon polygon = PreparedPolygon.fromEdNodes(rings);
+        EastNorth en = ProjectionRegistry.getProjection().latlon2eastNorth(anchor);
+        return polygon.containsPointEvenOdd(en.getX(), en.getY());
     }
 
 
@@ -241,6 +241,14 @@ public class EdMultipolygon extends EdObject {
         this.m_relation.removeAll();
     }
 
+    @Override
+    void detachFromChildren() {
+        for (EdWay w: m_outerWays)
+            w.removeRef(this);
+        for (EdWay w: m_innerWays)
+            w.removeRef(this);
+    }
+
     private boolean containsWayWithUniqueId(List<EdWay> ways, long id) {
         for (EdWay w: ways) {
             if (w.getUniqueId() == id)
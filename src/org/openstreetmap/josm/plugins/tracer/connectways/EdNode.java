@@ -141,6 +141,10 @@ public class EdNode extends EdObject {
         resetModified();
     }
 
+    @Override
+    void detachFromChildren() {
+    }
+
     /**
      * Returns all way referrers of this EdNode that match given
      * area filter predicate. Non-edited matching ways are automatically
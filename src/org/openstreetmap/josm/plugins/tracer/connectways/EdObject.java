@@ -60,6 +60,7 @@ public abstract class EdObject {
 
     protected void setModified() {
         m_modified = true;
+        m_editor.objectChanged(this);
     }
 
     protected void setFinalized() {
@@ -86,6 +87,7 @@ public abstract class EdObject {
             throw new IllegalStateException("Cannot delete referenced EdObject");
         this.deleteContentsShallow();
         m_deleted = true;
+        m_editor.objectChanged(this);
     }
 
     protected abstract void deleteContentsShallow();
@@ -136,6 +138,7 @@ public abstract class EdObject {
         if (m_refs == null) {
             return;
         }
+        m_editor.referrersChanged(this);
         if (m_refs instanceof EdObject) {
             if (m_refs == ref)
                 m_refs = null;
@@ -257,6 +260,12 @@ public abstract class EdObject {
 
     abstract void updateModifiedFlag();
 
+    /**
+     * Removes this object from editor referrers of its nodes/ways. Used when
+     * a shared WayEditor forgets the object, see {@link WayEditor#endEdit}.
+     */
+    abstract void detachFromChildren();
+
     /**
      * Checks if the given EdObject is the only one referrer of this EdObject.
      * That is, if the object has only this given editor referrer and no
@@ -0,0 +1,189 @@
+/**
+ *  Tracer - plugin for JOSM
+ *  Jan Bilak, Marian Kyral, Martin Svec
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.openstreetmap.josm.plugins.tracer.connectways;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.openstreetmap.josm.data.osm.BBox;
+
+/**
+ * Uniform grid over bounding boxes of EdObjects of a WayEditor. Changed objects
+ * are only marked dirty and they are re-indexed by the next search, so a series
+ * of edits between two searches costs a single update. Objects spanning too many
+ * cells are kept aside and returned by every search.
+ * Search returns candidates only, callers must check the current geometry.
+ * @param <T> Type of indexed objects
+ */
+final class EdObjectGrid<T extends EdObject> {
+
+    private static final int maxObjectCells = 64;
+    private static final int maxQueryCells = 4096;
+
+    private final double m_cellSize;
+    private final Map<Long, List<Entry<T>>> m_cells = new HashMap<>();
+    private final Map<T, Entry<T>> m_entries = new HashMap<>();
+    private final List<T> m_large = new ArrayList<>();
+    private final Set<T> m_dirty = new HashSet<>();
+
+    /**
+     * Constructor
+     * @param cell_size Size of grid cells in degrees
+     */
+    EdObjectGrid(double cell_size) {
+        m_cellSize = cell_size;
+    }
+
+    void markDirty(T obj) {
+        m_dirty.add(obj);
+    }
+
+    void remove(T obj) {
+        m_dirty.remove(obj);
+        unindex(obj);
+    }
+
+    void clear() {
+        m_cells.clear();
+        m_entries.clear();
+        m_large.clear();
+        m_dirty.clear();
+    }
+
+    List<T> search(BBox bbox) {
+        flush();
+
+        long min_ilat = cell(bbox.getBottomRightLat());
+        long min_ilon = cell(bbox.getTopLeftLon());
+        long max_ilat = cell(bbox.getTopLeftLat());
+        long max_ilon = cell(bbox.getBottomRightLon());
+
+        // huge query, scanning everything is cheaper
+        if ((max_ilat - min_ilat + 1) * (max_ilon - min_ilon + 1) > maxQueryCells)
+            return new ArrayList<>(m_entries.keySet());
+
+        List<T> result = new ArrayList<>(m_large);
+        for (long ilat = min_ilat; ilat <= max_ilat; ilat++) {
+            for (long ilon = min_ilon; ilon <= max_ilon; ilon++) {
+                List<Entry<T>> list = m_cells.get(key(ilat, ilon));
+                if (list == null)
+                    continue;
+                for (Entry<T> entry: list) {
+                    // report objects spanning several cells only in the first common cell
+                    if (ilat == Math.max(entry.m_minLat, min_ilat) && ilon == Math.max(entry.m_minLon, min_ilon))
+                        result.add(entry.m_object);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void flush() {
+        if (m_dirty.isEmpty())
+            return;
+        for (T obj: m_dirty) {
+            unindex(obj);
+            if (!obj.isDeleted())
+                index(obj);
+        }
+        m_dirty.clear();
+    }
+
+    private void index(T obj) {
+        BBox bbox = obj.getBBox();
+        if (!bbox.isValid())
+            return; // empty way/multipolygon, it can't intersect anything
+
+        Entry<T> entry = new Entry<>(obj,
+            cell(bbox.getBottomRightLat()), cell(bbox.getTopLeftLon()),
+            cell(bbox.getTopLeftLat()), cell(bbox.getBottomRightLon()));
+        m_entries.put(obj, entry);
+
+        if (entry.cellCount() > maxObjectCells) {
+            entry.m_large = true;
+            m_large.add(obj);
+            return;
+        }
+
+        for (long ilat = entry.m_minLat; ilat <= entry.m_maxLat; ilat++) {
+            for (long ilon = entry.m_minLon; ilon <= entry.m_maxLon; ilon++) {
+                Long key = key(ilat, ilon);
+                List<Entry<T>> list = m_cells.get(key);
+                if (list == null) {
+                    list = new ArrayList<>(4);
+                    m_cells.put(key, list);
+                }
+                list.add(entry);
+            }
+        }
+    }
+
+    private void unindex(T obj) {
+        Entry<T> entry = m_entries.remove(obj);
+        if (entry == null)
+            return;
+
+        if (entry.m_large) {
+            m_large.remove(obj);
+            return;
+        }
+
+        for (long ilat = entry.m_minLat; ilat <= entry.m_maxLat; ilat++) {
+            for (long ilon = entry.m_minLon; ilon <= entry.m_maxLon; ilon++) {
+                Long key = key(ilat, ilon);
+                List<Entry<T>> list = m_cells.get(key);
+                if (list == null)
+                    continue;
+                list.remove(entry);
+                if (list.isEmpty())
+                    m_cells.remove(key);
+            }
+        }
+    }
+
+    private long cell(double deg) {
+        return (long)Math.floor(deg / m_cellSize);
+    }
+
+    private static Long key(long ilat, long ilon) {
+        return (ilat << 32) ^ (ilon & 0xffffffffL);
+    }
+
+    private static final class Entry<T> {
+        private final T m_object;
+        private final long m_minLat, m_minLon, m_maxLat, m_maxLon; // indexed cell range
+        private boolean m_large;
+
+        Entry(T object, long min_lat, long min_lon, long max_lat, long max_lon) {
+            m_object = object;
+            m_minLat = min_lat;
+            m_minLon = min_lon;
+            m_maxLat = max_lat;
+            m_maxLon = max_lon;
+        }
+
+        long cellCount() {
+            return (m_maxLat - m_minLat + 1) * (m_maxLon - m_minLon + 1);
+        }
+    }
+}
@@ -31,7 +31,6 @@ import java.util.Set;
 
 import org.openstreetmap.josm.data.Bounds;
 import org.openstreetmap.josm.data.osm.BBox;
-import org.openstreetmap.josm.data.osm.INode;
 import org.openstreetmap.josm.data.osm.IWay;
 import org.openstreetmap.josm.data.osm.Node;
 import org.openstreetmap.josm.data.osm.OsmPrimitive;
@@ -220,6 +219,12 @@ public class EdWay extends EdObject {
         this.m_way.removeAll();
     }
 
+    @Override
+    void detachFromChildren() {
+        for (EdNode en: m_nodes)
+            en.removeRef(this);
+    }
+
     /**
      * Returns a final way that can be referenced in EdMultipolygon finalization.
      * The main difference from finalWay() is that for a modified way, it doesn't
@@ -395,23 +400,12 @@ public class EdWay extends EdObject {
         if (filter == null)
             throw new IllegalArgumentException(tr("No filter specified"));
 
-        Map<EdNode, Pair<Double, Integer>> nodes_map = new HashMap<>();
-
         final LatLonSize oversize = LatLonSize.get (this.getBBox(), tolerance.distanceMeters() * 1.1);
 
         // get every node touching the way, assign it to closest way segment
-        for (int i = 0; i < m_nodes.size() - 1; i++) {
-            final EdNode x = m_nodes.get(i);
-            final EdNode y = m_nodes.get(i+1);
-            Set<EdNode> tn = getEditor().findExistingNodesTouchingWaySegment(tolerance, oversize, x, y, filter);
-            for (EdNode node: tn) {
-                Pair<Double, Integer> best_segment = nodes_map.get(node);
-                double dist = GeomUtils.distanceToSegmentMeters(node, x, y);
-                if (best_segment == null || best_segment.a > dist) {
-                    nodes_map.put(node, new Pair<> (dist, i));
-                }
-            }
-        }
+        NodeCoordinates coords = NodeCoordinates.of(m_nodes, 1);
+        EdWaySegmentIndex segments = new EdWaySegmentIndex(coords, oversize);
+        Map<EdNode, Pair<Double, Integer>> nodes_map = getEditor().findExistingNodesTouchingWay(tolerance, coords, segments, filter);
 
         if (nodes_map.size() <= 0)
             return false;
@@ -460,26 +454,16 @@ public class EdWay extends EdObject {
         Map<EdNode, Pair<Double, Integer>> nodes_map = new HashMap<>();
 
         // get every node touching the way, assign it to closest way segment
-        for (int i = 0; i < m_nodes.size() - 1; i++) {
-            final EdNode x = m_nodes.get(i);
-            final EdNode y = m_nodes.get(i+1);
-
-            BBox seg_bbox = new BBox((INode) x.currentNodeUnsafe());
-            seg_bbox.add(y.getCoor());
-            BBoxUtils.extendBBox(seg_bbox, oversize);
-
-            for (EdNode node: other_nodes) {
-                if (!seg_bbox.bounds(node.getCoor()))
-                    continue;
-                GeomDeviation deviation = GeomUtils.pointDeviationFromSegment(node, x, y);
-                if (!deviation.inTolerance(tolerance))
-                    continue;
-                Pair<Double, Integer> best_segment = nodes_map.get(node);
-                double dist = deviation.distanceMeters();
-                if (best_segment == null || best_segment.a > dist) {
-                    nodes_map.put(node, new Pair<> (dist, i));
-                }
-            }
+        NodeCoordinates coords = NodeCoordinates.of(m_nodes, 1);
+        EdWaySegmentIndex segments = new EdWaySegmentIndex(coords, oversize);
+        int point = coords.scratchSlot();
+        int[] candidates = new int[segments.segmentCount()];
+        double[] dist = new double[1];
+        for (EdNode node: other_nodes) {
+            coords.set(point, node);
+            int best_segment = WayEditor.closestTouchingSegment(tolerance, coords, point, segments, candidates, dist);
+            if (best_segment >= 0)
+                nodes_map.put(node, new Pair<> (dist[0], best_segment));
         }
 
         if (nodes_map.size() <= 0)
@@ -491,39 +475,74 @@ public class EdWay extends EdObject {
 
     private void insertTouchingNodesIntoWaySegments(Map<EdNode, Pair<Double, Integer>> nodes_map) {
 
-        Set<Map.Entry<EdNode, Pair<Double, Integer>>> entry_set = nodes_map.entrySet();
-        List<EdNode> new_nodes = new ArrayList<>(m_nodes.size() + nodes_map.size());
+        List<EdNode> nodes = new ArrayList<>(nodes_map.size());
+        int[] segments = new int[nodes_map.size()];
+        double[] distances = new double[nodes_map.size()];
+        for (Map.Entry<EdNode, Pair<Double, Integer>> entry: nodes_map.entrySet()) {
+            int i = entry.getValue().b;
+            if (i < 0 || i >= m_nodes.size())
+                continue;
+            // sort key: distance from segment's first node, computed once per node
+            EdNode node = entry.getKey();
+            segments[nodes.size()] = i;
+            distances[nodes.size()] = m_nodes.get(i).getCoor().distance(node.getCoor());
+            nodes.add(node);
+            System.out.println("Connecting node " + Long.toString(node.getUniqueId()) + " into way " + Long.toString(this.getUniqueId()));
+        }
 
-        // go through all way segments and add touching nodes
-        for (int i = 0; i < m_nodes.size(); i++) {
-            final EdNode x = m_nodes.get(i);
-            new_nodes.add(m_nodes.get(i));
+        this.setNodes(insertIntoSegments(m_nodes, nodes, segments, distances));
+    }
 
-            // get all nodes mapped to this way segment
-            List<EdNode> add_nodes = new ArrayList<> ();
-            for (Map.Entry<EdNode, Pair<Double, Integer>> entry: entry_set) {
-                if (entry.getValue().b != i)
-                    continue;
-                add_nodes.add(entry.getKey());
+    /**
+     * Inserts nodes into way segments. Nodes of one segment are ordered by
+     * their distance from segment's first node, nodes with equal distance
+     * keep their order.
+     *
+     * @param way_nodes nodes of the way
+     * @param nodes nodes to insert
+     * @param segments segment index of each inserted node, segment i starts at way_nodes[i]
+     * @param distances distance of each inserted node from its segment's first node
+     * @return new list of way nodes
+     */
+    static <N> List<N> insertIntoSegments(List<N> way_nodes, List<N> nodes, int[] segments, double[] distances) {
+
+        // bucket nodes by way segment in one pass
+        List<List<Integer>> segment_nodes = new ArrayList<>(way_nodes.size());
+        for (int i = 0; i < way_nodes.size(); i++)
+            segment_nodes.add(null);
+        for (int n = 0; n < nodes.size(); n++) {
+            List<Integer> bucket = segment_nodes.get(segments[n]);
+            if (bucket == null) {
+                bucket = new ArrayList<> (2);
+                segment_nodes.set(segments[n], bucket);
             }
+            bucket.add(n);
+        }
+
+        List<N> new_nodes = new ArrayList<>(way_nodes.size() + nodes.size());
+
+        // go through all way segments and add touching nodes
+        for (int i = 0; i < way_nodes.size(); i++) {
+            new_nodes.add(way_nodes.get(i));
 
-            if (add_nodes.size() <= 0)
+            List<Integer> add_nodes = segment_nodes.get(i);
+            if (add_nodes == null)
                 continue;
 
             // sort nodes according to the distance from segment's first node
-            Collections.sort(add_nodes, new Comparator<EdNode>(){
-                @Override
-                public int compare(EdNode d1, EdNode d2) {
-                    return Double.compare(x.getCoor().distance(d1.getCoor()), x.getCoor().distance(d2.getCoor()));
-                }
-            });
-            for (EdNode n: add_nodes) {
-                System.out.println("Connecting node " + Long.toString(n.getUniqueId()) + " into way " + Long.toString(this.getUniqueId()));
-                new_nodes.add(n);
+            if (add_nodes.size() > 1) {
+                Collections.sort(add_nodes, new Comparator<Integer>(){
+                    @Override
+                    public int compare(Integer n1, Integer n2) {
+                        return Double.compare(distances[n1], distances[n2]);
+                    }
+                });
             }
+            for (int n: add_nodes)
+                new_nodes.add(nodes.get(n));
         }
 
-        this.setNodes(new_nodes);
+        return new_nodes;
     }
 
     /**
@@ -0,0 +1,109 @@
+/**
+ *  Tracer - plugin for JOSM
+ *  Jan Bilak, Marian Kyral, Martin Svec
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.openstreetmap.josm.plugins.tracer.connectways;
+
+import org.openstreetmap.josm.data.osm.BBox;
+
+/**
+ * Bounding box tree over segments of a way. Every tree node covers a contiguous
+ * run of segments, which are spatially coherent for polylines, so a point
+ * query visits a logarithmic number of tree nodes for usual ways.
+ * Segment boxes are extended by given oversize, exactly like BBoxUtils.extendBBox()
+ * does. Segments are returned in ascending order.
+ */
+final class EdWaySegmentIndex {
+
+    private final int m_segments;
+    private final double[] m_minLat, m_minLon, m_maxLat, m_maxLon; // boxes of tree nodes, root is 1
+
+    /**
+     * Constructor
+     * @param coords Way nodes in slots 0 .. size()-1, segment i is (i, i+1)
+     * @param oversize Extra size added to all segment boxes
+     */
+    EdWaySegmentIndex(NodeCoordinates coords, LatLonSize oversize) {
+        m_segments = Math.max(0, coords.size() - 1);
+        int size = 4 * Math.max(1, m_segments);
+        m_minLat = new double[size];
+        m_minLon = new double[size];
+        m_maxLat = new double[size];
+        m_maxLon = new double[size];
+        if (m_segments > 0)
+            build(1, 0, m_segments, coords, oversize);
+    }
+
+    boolean isEmpty() {
+        return m_segments == 0;
+    }
+
+    int segmentCount() {
+        return m_segments;
+    }
+
+    /**
+     * Returns bounding box of all (extended) segments
+     * @return Bounding box, must not be called for an empty index
+     */
+    BBox getBBox() {
+        return new BBox(m_minLon[1], m_minLat[1], m_maxLon[1], m_maxLat[1]);
+    }
+
+    /**
+     * Finds segments whose extended box contains given point.
+     * @param lat Latitude of the point
+     * @param lon Longitude of the point
+     * @param result Output array, must have segmentCount() elements at least
+     * @return Number of segments stored in result
+     */
+    int search(double lat, double lon, int[] result) {
+        if (m_segments == 0)
+            return 0;
+        return search(1, 0, m_segments, lat, lon, result, 0);
+    }
+
+    private void build(int k, int lo, int hi, NodeCoordinates coords, LatLonSize oversize) {
+        if (hi - lo == 1) {
+            m_minLat[k] = Math.min(coords.lat(lo), coords.lat(hi)) - oversize.latSize();
+            m_minLon[k] = Math.min(coords.lon(lo), coords.lon(hi)) - oversize.lonSize();
+            m_maxLat[k] = Math.max(coords.lat(lo), coords.lat(hi)) + oversize.latSize();
+            m_maxLon[k] = Math.max(coords.lon(lo), coords.lon(hi)) + oversize.lonSize();
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        build(2*k, lo, mid, coords, oversize);
+        build(2*k + 1, mid, hi, coords, oversize);
+        m_minLat[k] = Math.min(m_minLat[2*k], m_minLat[2*k + 1]);
+        m_minLon[k] = Math.min(m_minLon[2*k], m_minLon[2*k + 1]);
+        m_maxLat[k] = Math.max(m_maxLat[2*k], m_maxLat[2*k + 1]);
+        m_maxLon[k] = Math.max(m_maxLon[2*k], m_maxLon[2*k + 1]);
+    }
+
+    private int search(int k, int lo, int hi, double lat, double lon, int[] result, int count) {
+        if (lat < m_minLat[k] || lat > m_maxLat[k] || lon < m_minLon[k] || lon > m_maxLon[k])
+            return count;
+        if (hi - lo == 1) {
+            result[count] = lo;
+            return count + 1;
+        }
+        int mid = (lo + hi) >>> 1;
+        count = search(2*k, lo, mid, lat, lon, result, count);
+        return search(2*k + 1, mid, hi, lat, lon, result, count);
+    }
+}
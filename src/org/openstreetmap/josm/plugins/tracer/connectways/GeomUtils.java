@@ -164,6 +164,133 @@ public abstract class GeomUtils {
         return new GeomDeviation (dev_distance_meters, dev_angle);
     }
 
+    /**
+     * Calculates unoriented angle between two line segments, in radians.
+     * Allocation-free variant of {@link #unorientedAngleBetween(Node, Node, Node)}.
+     * @param coords Node coordinates
+     * @param p0 Slot of the first point of the first segment
+     * @param p1 Slot of the vertex point, shared by both segments
+     * @param p2 Slot of the second point of the second segment
+     * @return Angle in radians
+     */
+    static double unorientedAngleBetween(NodeCoordinates coords, int p0, int p1, int p2) {
+        double a1 = bearing(coords, p1, p0);
+        double a2 = bearing(coords, p1, p2);
+        double angle = Math.abs(a2 - a1) % (2 * Math.PI);
+        if (angle < 0)
+            angle += 2 * Math.PI;
+        if (angle > Math.PI)
+            angle = (2 * Math.PI) - angle;
+        return angle;
+    }
+
+    /**
+     * Calculates distance of a point to a line segment.
+     * Index variant of {@link #distanceToSegmentMeters(Node, Node, Node)}. The closest
+     * point is unprojected only if it lies inside the segment, which is the only
+     * case allocating (EastNorth and LatLon of the projection API).
+     * @param coords Node coordinates
+     * @param point Slot of the point for which the minimal distance is calculated
+     * @param segp1 Slot of the first point determining the line segment
+     * @param segp2 Slot of the second point determining the line segment
+     * @return Distance in meters
+     */
+    static double distanceToSegmentMeters(NodeCoordinates coords, int point, int segp1, int segp2) {
+        double ldx = coords.east(segp2) - coords.east(segp1);
+        double ldy = coords.north(segp2) - coords.north(segp1);
+        if (ldx == 0 && ldy == 0)
+            return greatCircleDistance(coords, point, segp1);
+
+        double pdx = coords.east(point) - coords.east(segp1);
+        double pdy = coords.north(point) - coords.north(segp1);
+        double offset = (pdx * ldx + pdy * ldy) / (ldx * ldx + ldy * ldy);
+        if (offset <= 0)
+            return greatCircleDistance(coords, point, segp1);
+        if (offset >= 1)
+            return greatCircleDistance(coords, point, segp2);
+
+        LatLon cp = ProjectionRegistry.getProjection().eastNorth2latlon(new EastNorth(
+            coords.east(segp1) + offset * ldx, coords.north(segp1) + offset * ldy));
+        return greatCircleDistance(coords.lat(point), coords.lon(point), cp.lat(), cp.lon());
+    }
+
+    /**
+     * Returns angle deviation of a point from a line segment, it's the greater
+     * of unoriented vertex angles (point, segp1, segp2) and (point, segp2, segp1).
+     * @param coords Node coordinates
+     * @param point Slot of the point
+     * @param segp1 Slot of the first point determining the line segment
+     * @param segp2 Slot of the second point determining the line segment
+     * @return Angle in radians
+     */
+    static double angleDeviationFromSegment(NodeCoordinates coords, int point, int segp1, int segp2) {
+        double a1 = unorientedAngleBetween(coords, segp1, segp2, point);
+        double a2 = unorientedAngleBetween(coords, segp2, segp1, point);
+        return Math.max(a1, a2);
+    }
+
+    /**
+     * Calculates deviation of a point from a line segment.
+     * Index variant of {@link #pointDeviationFromSegment(Node, Node, Node)}.
+     * @param coords Node coordinates
+     * @param point Slot of the point for which the deviation is calculated
+     * @param segp1 Slot of the first point determining the line segment
+     * @param segp2 Slot of the second point determining the line segment
+     * @return Calculated GeomDeviation
+     */
+    static GeomDeviation pointDeviationFromSegment(NodeCoordinates coords, int point, int segp1, int segp2) {
+        return new GeomDeviation (distanceToSegmentMeters(coords, point, segp1, segp2), angleDeviationFromSegment(coords, point, segp1, segp2));
+    }
+
+    /**
+     * Checks whether a point deviates from a line segment within given tolerance.
+     * Cheap angle deviation is checked first, so only points passing it
+     * may need the allocating unprojection of distanceToSegmentMeters().
+     * @param tolerance Maximal deviation tolerance
+     * @param coords Node coordinates
+     * @param point Slot of the point
+     * @param segp1 Slot of the first point determining the line segment
+     * @param segp2 Slot of the second point determining the line segment
+     * @return Distance of the point to the segment in meters, or -1 if the point isn't in tolerance
+     */
+    static double pointDistanceFromSegmentInTolerance(GeomDeviation tolerance, NodeCoordinates coords, int point, int segp1, int segp2) {
+        if (angleDeviationFromSegment(coords, point, segp1, segp2) > tolerance.angleRad())
+            return -1;
+        double dist = distanceToSegmentMeters(coords, point, segp1, segp2);
+        if (dist > tolerance.distanceMeters())
+            return -1;
+        return dist;
+    }
+
+    private static double bearing(NodeCoordinates coords, int from, int to) {
+        double lat1 = Math.toRadians(coords.lat(from));
+        double lat2 = Math.toRadians(coords.lat(to));
+        double dlon = Math.toRadians(coords.lon(to) - coords.lon(from));
+        double bearing = Math.atan2(
+            Math.sin(dlon) * Math.cos(lat2),
+            Math.cos(lat1) * Math.sin(lat2) - Math.sin(lat1) * Math.cos(lat2) * Math.cos(dlon));
+        bearing %= 2 * Math.PI;
+        if (bearing < 0)
+            bearing += 2 * Math.PI;
+        return bearing;
+    }
+
+    private static double greatCircleDistance(NodeCoordinates coords, int p1, int p2) {
+        return greatCircleDistance(coords.lat(p1), coords.lon(p1), coords.lat(p2), coords.lon(p2));
+    }
+
+    // same formula as ILatLon.greatCircleDistance()
+    private static double greatCircleDistance(double lat1, double lon1, double lat2, double lon2) {
+        double sinHalfLat = Math.sin(Math.toRadians(lat2 - lat1) / 2);
+        double sinHalfLon = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+        double d = 2 * Ellipsoid.WGS84.a * Math.asin(
+            Math.sqrt(sinHalfLat * sinHalfLat +
+                Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * sinHalfLon * sinHalfLon));
+        if (Double.isNaN(d))
+            d = Math.PI * Ellipsoid.WGS84.a;
+        return d;
+    }
+
     public static double distanceOfNodesMeters(EdNode x, EdNode y) {
         ILatLon latLonI = x.getCoor();
         return latLonI.greatCircleDistance(y.getCoor());
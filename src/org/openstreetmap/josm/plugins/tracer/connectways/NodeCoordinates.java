@@ -0,0 +1,119 @@
+/**
+ *  Tracer - plugin for JOSM
+ *  Jan Bilak, Marian Kyral, Martin Svec
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.openstreetmap.josm.plugins.tracer.connectways;
+
+import java.util.List;
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.osm.Node;
+
+/**
+ * Lat/lon and east/north coordinates of nodes in parallel arrays, indexed
+ * by node slot. Coordinates are copied once, so geometry loops over them
+ * don't touch Node objects and don't allocate.
+ * East/north values are valid for the projection active at the time of copying.
+ */
+final class NodeCoordinates {
+
+    private final double[] m_lat;
+    private final double[] m_lon;
+    private final double[] m_east;
+    private final double[] m_north;
+    private int m_size;
+
+    /**
+     * Constructor
+     * @param capacity Number of slots
+     */
+    NodeCoordinates(int capacity) {
+        m_lat = new double[capacity];
+        m_lon = new double[capacity];
+        m_east = new double[capacity];
+        m_north = new double[capacity];
+    }
+
+    /**
+     * Creates coordinates of given nodes in slots 0 .. nodes.size()-1,
+     * followed by given number of spare slots, see {@link #scratchSlot()}.
+     * @param nodes Nodes
+     * @param spare Number of additional slots
+     * @return Node coordinates
+     */
+    static NodeCoordinates of(List<EdNode> nodes, int spare) {
+        NodeCoordinates coords = new NodeCoordinates(nodes.size() + spare);
+        for (EdNode node: nodes)
+            coords.add(node);
+        return coords;
+    }
+
+    int size() {
+        return m_size;
+    }
+
+    /**
+     * Returns the first slot after stored nodes, reserved for a tested point
+     * by spare slots of {@link #of}. It's filled by set() and not counted in size().
+     * @return Slot index
+     * @throws IllegalStateException No spare slot was reserved
+     */
+    int scratchSlot() {
+        if (m_size >= m_lat.length)
+            throw new IllegalStateException("No spare slot reserved");
+        return m_size;
+    }
+
+    int add(EdNode node) {
+        set(m_size, node.currentNodeUnsafe());
+        return m_size++;
+    }
+
+    /**
+     * Stores node into an already allocated slot, used for scratch slots
+     * @param slot Slot index
+     * @param node Node
+     */
+    void set(int slot, Node node) {
+        // Node.lat()/lon() read stored values, getCoor() would allocate a LatLon
+        m_lat[slot] = node.lat();
+        m_lon[slot] = node.lon();
+        EastNorth en = node.getEastNorth();
+        m_east[slot] = en.east();
+        m_north[slot] = en.north();
+    }
+
+    void set(int slot, EdNode node) {
+        set(slot, node.currentNodeUnsafe());
+    }
+
+    double lat(int slot) {
+        return m_lat[slot];
+    }
+
+    double lon(int slot) {
+        return m_lon[slot];
+    }
+
+    double east(int slot) {
+        return m_east[slot];
+    }
+
+    double north(int slot) {
+        return m_north[slot];
+    }
+}
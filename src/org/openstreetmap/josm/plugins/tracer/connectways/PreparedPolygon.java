@@ -0,0 +1,317 @@
+/**
+ *  Tracer - plugin for JOSM
+ *  Jan Bilak, Marian Kyral, Martin Svec
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.openstreetmap.josm.plugins.tracer.connectways;
+
+import java.util.Arrays;
+import java.util.List;
+import org.openstreetmap.josm.data.coor.EastNorth;
+
+/**
+ * Polygon rings prepared for repeated point-in-polygon queries. Rings are flat
+ * [x0, y0, x1, y1, ...] arrays, implicitly closed. Crossing test is the same as
+ * in JOSM's Geometry.nodeInsidePolygon.
+ *
+ * Polygons with many vertices get a lazily built index of horizontal bands,
+ * every band lists edges whose y-range overlaps it, so a query tests only
+ * the edges of a single band. If edges span too many bands, the index is
+ * not built and queries scan all edges.
+ */
+public final class PreparedPolygon {
+
+    // smaller polygons are scanned linearly
+    private static final int indexMinVertices = 128;
+    // average number of edges per band
+    private static final int edgesPerBand = 4;
+    private static final int maxBands = 16384;
+    // edges are copied to every band they span, zig-zag rings would need too many copies
+    private static final int maxEntriesPerVertex = 16;
+
+    private final double[][] m_rings;
+    private final int m_vertices;
+    private volatile BandIndex m_index;
+
+    /**
+     * Constructor
+     * @param rings Flat [x0, y0, x1, y1, ...] ring coordinates, arrays are not copied
+     */
+    public PreparedPolygon(double[][] rings) {
+        m_rings = rings;
+        int vertices = 0;
+        for (double[] ring: rings)
+            vertices += ring.length / 2;
+        m_vertices = vertices;
+    }
+
+    /**
+     * Creates polygon from east/north coordinates of given rings.
+     * @param rings Lists of ring nodes
+     * @return Prepared polygon
+     */
+    public static PreparedPolygon fromEdNodes(List<List<EdNode>> rings) {
+        double[][] arr = new double[rings.size()][];
+        for (int i = 0; i < arr.length; i++) {
+            List<EdNode> ring = rings.get(i);
+            double[] xy = new double[2 * ring.size()];
+            for (int j = 0; j < ring.size(); j++) {
+                EastNorth en = ring.get(j).getEastNorth();
+                xy[2*j] = en.getX();
+                xy[2*j + 1] = en.getY();
+            }
+            arr[i] = xy;
+        }
+        return new PreparedPolygon(arr);
+    }
+
+    public int ringCount() {
+        return m_rings.length;
+    }
+
+    public int vertexCount() {
+        return m_vertices;
+    }
+
+    /**
+     * Checks whether the point lies inside the first (outer) ring and outside
+     * all remaining (inner) rings.
+     * @param x East coordinate
+     * @param y North coordinate
+     * @return true if the point is inside
+     */
+    public boolean containsPoint(double x, double y) {
+        if (m_rings.length == 0)
+            return false;
+        boolean[] inside = ringParities(x, y);
+        if (!inside[0])
+            return false;
+        for (int i = 1; i < inside.length; i++) {
+            if (inside[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the point lies inside the polygon by even-odd rule over
+     * all rings, suitable for multipolygons with several outer rings.
+     * @param x East coordinate
+     * @param y North coordinate
+     * @return true if the point is inside
+     */
+    public boolean containsPointEvenOdd(double x, double y) {
+        boolean result = false;
+        for (boolean inside: ringParities(x, y))
+            result ^= inside;
+        return result;
+    }
+
+    /**
+     * Returns rough estimate of heap memory occupied by the polygon.
+     * @return Estimated size in bytes
+     */
+    public long getEstimatedMemorySize() {
+        long size = 48;
+        for (double[] ring: m_rings)
+            size += 16 + 8 * (long)ring.length;
+        BandIndex index = m_index;
+        if (index != null && index.usable())
+            size += 64 + 4 * (long)(index.m_bandStart.length + 2 * index.m_edgeVertices.length);
+        return size;
+    }
+
+    private boolean[] ringParities(double x, double y) {
+        boolean[] inside = new boolean[m_rings.length];
+
+        BandIndex index = m_vertices >= indexMinVertices ? getIndex() : null;
+        if (index == null || !index.usable()) {
+            for (int r = 0; r < m_rings.length; r++)
+                inside[r] = ringContainsPoint(m_rings[r], x, y);
+            return inside;
+        }
+
+        // crossing edges must have y-range overlapping y
+        if (y < index.m_minY || y > index.m_maxY)
+            return inside;
+        int band = index.band(y);
+        for (int k = index.m_bandStart[band]; k < index.m_bandStart[band + 1]; k++) {
+            int r = index.m_edgeRings[k];
+            double[] ring = m_rings[r];
+            int j = index.m_edgeVertices[k];
+            int prev = (j == 0 ? ring.length : j) - 2;
+            if (crossesEdge(ring[prev], ring[prev + 1], ring[j], ring[j + 1], x, y))
+                inside[r] = !inside[r];
+        }
+        return inside;
+    }
+
+    /**
+     * Builds the band index now instead of on the first query, so that
+     * getEstimatedMemorySize() includes it.
+     */
+    public void prepare() {
+        if (m_vertices >= indexMinVertices)
+            getIndex();
+    }
+
+    private BandIndex getIndex() {
+        BandIndex index = m_index;
+        if (index == null) {
+            index = new BandIndex(m_rings, m_vertices);
+            m_index = index;
+        }
+        return index;
+    }
+
+    private static boolean ringContainsPoint(double[] ring, double x, double y) {
+        int n = ring.length;
+        if (n < 4)
+            return false;
+
+        boolean inside = false;
+        double oldX = ring[n - 2];
+        double oldY = ring[n - 1];
+        for (int i = 0; i < n; i += 2) {
+            double newX = ring[i];
+            double newY = ring[i + 1];
+            if (crossesEdge(oldX, oldY, newX, newY, x, y))
+                inside = !inside;
+            oldX = newX;
+            oldY = newY;
+        }
+        return inside;
+    }
+
+    // (stolen from JOSM's Geometry, nodeInsidePolygon)
+    // Edge can be crossed only if y lies in (min(oldY, newY), max(oldY, newY)].
+    private static boolean crossesEdge(double oldX, double oldY, double newX, double newY, double x, double y) {
+        double p1x, p1y, p2x, p2y;
+
+        // order points so p1.lat <= p2.lat
+        if (newY > oldY) {
+            p1x = oldX;
+            p1y = oldY;
+            p2x = newX;
+            p2y = newY;
+        } else {
+            p1x = newX;
+            p1y = newY;
+            p2x = oldX;
+            p2y = oldY;
+        }
+
+        return (newY < y) == (y <= oldY)
+            && (x - p1x) * (p2y - p1y) < (p2x - p1x) * (y - p1y);
+    }
+
+    /**
+     * Edges bucketed into horizontal bands, in compressed row form. Edge k of
+     * band b is (prev(v), v), where v = m_edgeVertices[k] is a coordinate offset
+     * in ring m_edgeRings[k], for m_bandStart[b] &lt;= k &lt; m_bandStart[b+1].
+     * Index exceeding maxEntriesPerVertex copies per vertex is left empty, see usable().
+     */
+    private static final class BandIndex {
+        private final double m_minY, m_maxY, m_scale;
+        private final int m_bands;
+        private final int[] m_bandStart;
+        private final int[] m_edgeRings;
+        private final int[] m_edgeVertices;
+
+        BandIndex(double[][] rings, int vertices) {
+            double min_y = Double.POSITIVE_INFINITY;
+            double max_y = Double.NEGATIVE_INFINITY;
+            for (double[] ring: rings) {
+                for (int j = 1; j < ring.length; j += 2) {
+                    min_y = Math.min(min_y, ring[j]);
+                    max_y = Math.max(max_y, ring[j]);
+                }
+            }
+            m_minY = min_y;
+            m_maxY = max_y;
+            m_bands = (max_y > min_y) ? Math.max(1, Math.min(maxBands, vertices / edgesPerBand)) : 1;
+            m_scale = (max_y > min_y) ? m_bands / (max_y - min_y) : 0;
+
+            // count edges per band (as differences, linear even for edges spanning
+            // many bands), then fill them
+            int[] start = new int[m_bands + 2];
+            long entries = 0;
+            for (double[] ring: rings) {
+                if (ring.length < 4)
+                    continue;
+                for (int j = 0; j < ring.length; j += 2) {
+                    int prev = (j == 0 ? ring.length : j) - 2;
+                    double y0 = ring[prev + 1];
+                    double y1 = ring[j + 1];
+                    if (y0 == y1)
+                        continue; // horizontal edges are never crossed
+                    int b0 = band(Math.min(y0, y1));
+                    int b1 = band(Math.max(y0, y1));
+                    start[b0 + 1]++;
+                    start[b1 + 2]--;
+                    entries += b1 - b0 + 1;
+                }
+            }
+            if (entries > (long)maxEntriesPerVertex * vertices) {
+                m_bandStart = null;
+                m_edgeRings = null;
+                m_edgeVertices = null;
+                return;
+            }
+            for (int b = 1; b <= m_bands; b++)
+                start[b + 1] += start[b]; // edges per band
+            for (int b = 1; b <= m_bands; b++)
+                start[b] += start[b - 1]; // offsets
+            start = Arrays.copyOf(start, m_bands + 1);
+
+            int[] fill = start.clone();
+            m_bandStart = start;
+            m_edgeRings = new int[start[m_bands]];
+            m_edgeVertices = new int[start[m_bands]];
+            for (int r = 0; r < rings.length; r++) {
+                double[] ring = rings[r];
+                if (ring.length < 4)
+                    continue;
+                for (int j = 0; j < ring.length; j += 2) {
+                    int prev = (j == 0 ? ring.length : j) - 2;
+                    double y0 = ring[prev + 1];
+                    double y1 = ring[j + 1];
+                    if (y0 == y1)
+                        continue;
+                    for (int b = band(Math.min(y0, y1)); b <= band(Math.max(y0, y1)); b++) {
+                        m_edgeRings[fill[b]] = r;
+                        m_edgeVertices[fill[b]] = j;
+                        fill[b]++;
+                    }
+                }
+            }
+        }
+
+        boolean usable() {
+            return m_bandStart != null;
+        }
+
+        int band(double y) {
+            int b = (int)((y - m_minY) * m_scale);
+            if (b < 0)
+                return 0;
+            if (b >= m_bands)
+                return m_bands - 1;
+            return b;
+        }
+    }
+}
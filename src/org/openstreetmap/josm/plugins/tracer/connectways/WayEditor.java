@@ -19,11 +19,15 @@
 
 package org.openstreetmap.josm.plugins.tracer.connectways;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Set;
 import org.openstreetmap.josm.command.AddCommand;
@@ -34,13 +38,13 @@ import org.openstreetmap.josm.data.Bounds;
 import org.openstreetmap.josm.data.coor.LatLon;
 import org.openstreetmap.josm.data.osm.BBox;
 import org.openstreetmap.josm.data.osm.DataSet;
-import org.openstreetmap.josm.data.osm.INode;
 import org.openstreetmap.josm.data.osm.IWay;
 import org.openstreetmap.josm.data.osm.Node;
 import org.openstreetmap.josm.data.osm.OsmPrimitive;
 import org.openstreetmap.josm.data.osm.Relation;
 import org.openstreetmap.josm.data.osm.Way;
 import org.openstreetmap.josm.tools.Geometry;
+import org.openstreetmap.josm.tools.Pair;
 import org.openstreetmap.josm.tools.Utils;
 import static org.openstreetmap.josm.tools.I18n.tr;
 
@@ -49,9 +53,13 @@ public class WayEditor {
 
     private final LatLonSize minimalOversize = new LatLonSize(0.0000005, 0.0000005);
 
+    // grid cell sizes in degrees, approx. 50m for nodes and 200m for ways and multipolygons
+    private static final double nodeIndexCellSize = 0.0005;
+    private static final double wayIndexCellSize = 0.002;
+
     private final double m_duplicateNodesPrecision;
 
-    private final long m_node_idGuard, m_way_idGuard, m_rel_idGuard;
+    private long m_node_idGuard, m_way_idGuard, m_rel_idGuard;
     private final DataSet m_dataSet;
 
     private final Set<EdNode> m_nodes;
@@ -60,6 +68,12 @@ public class WayEditor {
     private final HashMap<Long, EdNode> m_originalNodes;
     private final HashMap<Long, EdWay> m_originalWays;
     private final HashMap<Long, EdMultipolygon> m_originalMultipolygons;
+    private final EdObjectGrid<EdNode> m_nodeIndex;
+    private final EdObjectGrid<EdWay> m_wayIndex;
+    private final EdObjectGrid<EdMultipolygon> m_multipolygonIndex;
+
+    // objects whose commands or required state may have changed, see finalizeEdit()
+    private final Set<EdObject> m_dirty;
 
     public WayEditor(DataSet dataset) {
         this (dataset, 0.0);
@@ -68,37 +82,173 @@ public class WayEditor {
 
     public WayEditor(DataSet dataset, double resurrect_dist) {
         m_dataSet = dataset;
-        m_node_idGuard = (new Node()).getUniqueId();
-        m_way_idGuard = (new Way()).getUniqueId();
-        m_rel_idGuard = (new Relation()).getUniqueId();
+        resetIdGuards();
         m_nodes = new HashSet<> ();
         m_ways = new HashSet<> ();
         m_multipolygons = new HashSet<> ();
         m_originalNodes = new HashMap<> ();
         m_originalWays = new HashMap<> ();
         m_originalMultipolygons = new HashMap<> ();
+        m_nodeIndex = new EdObjectGrid<> (nodeIndexCellSize);
+        m_wayIndex = new EdObjectGrid<> (wayIndexCellSize);
+        m_multipolygonIndex = new EdObjectGrid<> (wayIndexCellSize);
+        m_dirty = new HashSet<> ();
         m_duplicateNodesPrecision = GeomUtils.duplicateNodesPrecision();
     }
 
+    private void resetIdGuards() {
+        m_node_idGuard = (new Node()).getUniqueId();
+        m_way_idGuard = (new Way()).getUniqueId();
+        m_rel_idGuard = (new Relation()).getUniqueId();
+    }
+
     public DataSet getDataSet() {
         return m_dataSet;
     }
 
+    /**
+     * Starts next edit of a long-lived editor, see {@link WayEditorSession}.
+     * Primitives added to the DataSet by previous edits become usable.
+     */
+    void beginEdit() {
+        resetIdGuards();
+
+        // Kept objects required only by external referrers could have lost them
+        // in the DataSet meanwhile, let finalizeEdit() check them again.
+        for (EdNode n: m_nodes)
+            if (!n.hasEditorReferrers() && !n.isTagged())
+                m_dirty.add(n);
+        for (EdWay w: m_ways)
+            if (!w.hasEditorReferrers() && !w.isTagged())
+                m_dirty.add(w);
+    }
+
+    /**
+     * Finishes an edit of a long-lived editor, see {@link WayEditorSession}.
+     * Must be called after the commands returned by finalizeEdit() were executed
+     * (or discarded). Forgets all new, modified, deleted and finalized objects,
+     * wrappers of untouched original primitives are kept for the next edit.
+     */
+    void endEdit() {
+        // forgetting an object can leave its nodes unreferenced, repeat until stable
+        List<EdObject> touched;
+        do {
+            touched = new ArrayList<>();
+            for (EdNode n: m_nodes)
+                if (!isUntouchedOriginal(n))
+                    touched.add(n);
+            for (EdWay w: m_ways)
+                if (!isUntouchedOriginal(w))
+                    touched.add(w);
+            for (EdMultipolygon mp: m_multipolygons)
+                if (!isUntouchedOriginal(mp))
+                    touched.add(mp);
+            forget(touched);
+        } while (!touched.isEmpty());
+        m_dirty.clear();
+    }
+
+    private static boolean isUntouchedOriginal(EdObject obj) {
+        if (!obj.hasOriginal() || obj.isModified() || obj.isDeleted() || obj.isFinalized())
+            return false;
+        // finalizeEdit() deletes unreferenced untagged originals, never keep them for another edit
+        return obj.isTagged() || obj.hasReferrers();
+    }
+
+    /**
+     * Forgets wrappers of given primitives, e.g. because they were changed
+     * in the DataSet. Objects built of these wrappers are forgotten too.
+     * @param prims changed primitives
+     */
+    void invalidate(Collection<? extends OsmPrimitive> prims) {
+        List<EdObject> objects = new ArrayList<>();
+        for (OsmPrimitive prim: prims) {
+            EdObject obj = editedObject(prim);
+            if (obj != null)
+                objects.add(obj);
+        }
+        if (!objects.isEmpty())
+            forget(objects);
+    }
+
+    /**
+     * Forgets all wrappers.
+     */
+    void invalidateAll() {
+        m_nodes.clear();
+        m_ways.clear();
+        m_multipolygons.clear();
+        m_originalNodes.clear();
+        m_originalWays.clear();
+        m_originalMultipolygons.clear();
+        m_nodeIndex.clear();
+        m_wayIndex.clear();
+        m_multipolygonIndex.clear();
+        m_dirty.clear();
+    }
+
+    int getObjectCount() {
+        return m_nodes.size() + m_ways.size() + m_multipolygons.size();
+    }
+
+    private void forget(Collection<EdObject> objects) {
+        // referrers use the forgotten wrappers, so they must go too
+        Set<EdObject> forgotten = new HashSet<>();
+        ArrayDeque<EdObject> queue = new ArrayDeque<>(objects);
+        while (!queue.isEmpty()) {
+            EdObject obj = queue.poll();
+            if (forgotten.add(obj))
+                queue.addAll(obj.getEditorReferrers(EdObject.class));
+        }
+
+        for (EdObject obj: forgotten) {
+            obj.detachFromChildren();
+            OsmPrimitive orig = obj.originalPrimitive();
+            if (obj.isNode()) {
+                m_nodes.remove((EdNode)obj);
+                m_nodeIndex.remove((EdNode)obj);
+                if (orig != null && m_originalNodes.get(orig.getUniqueId()) == obj)
+                    m_originalNodes.remove(orig.getUniqueId());
+            }
+            else if (obj.isWay()) {
+                m_ways.remove((EdWay)obj);
+                m_wayIndex.remove((EdWay)obj);
+                if (orig != null && m_originalWays.get(orig.getUniqueId()) == obj)
+                    m_originalWays.remove(orig.getUniqueId());
+            }
+            else if (obj.isMultipolygon()) {
+                m_multipolygons.remove((EdMultipolygon)obj);
+                m_multipolygonIndex.remove((EdMultipolygon)obj);
+                if (orig != null && m_originalMultipolygons.get(orig.getUniqueId()) == obj)
+                    m_originalMultipolygons.remove(orig.getUniqueId());
+            }
+        }
+
+        // (detaching marks children dirty, even the forgotten ones)
+        m_dirty.removeAll(forgotten);
+    }
+
     public EdNode newNode(LatLon latlon) {
         EdNode node = new EdNode(this, latlon);
         m_nodes.add(node);
+        m_nodeIndex.markDirty(node);
+        m_dirty.add(node);
         return node;
     }
 
     public EdWay newWay(List<EdNode> nodes) {
         EdWay way = new EdWay(this, nodes);
         m_ways.add(way);
+        m_wayIndex.markDirty(way);
+        m_dirty.add(way);
         return way;
     }
 
     public EdMultipolygon newMultipolygon() {
         EdMultipolygon multipolygon = new EdMultipolygon(this);
         m_multipolygons.add(multipolygon);
+        m_multipolygonIndex.markDirty(multipolygon);
+        m_dirty.add(multipolygon);
         return multipolygon;
     }
 
@@ -122,6 +272,10 @@ public class WayEditor {
         en = new EdNode(this, node);
         m_originalNodes.put(node.getUniqueId(), en);
         m_nodes.add(en);
+        m_nodeIndex.markDirty(en);
+        // unreferenced untagged node is deleted by finalizeEdit() even if untouched
+        if (!en.isTagged() && !en.hasExternalReferrers())
+            m_dirty.add(en);
         return en;
     }
 
@@ -145,6 +299,10 @@ public class WayEditor {
         ew = new EdWay(this, way);
         m_originalWays.put(way.getUniqueId(), ew);
         m_ways.add(ew);
+        m_wayIndex.markDirty(ew);
+        // unreferenced untagged way is deleted by finalizeEdit() even if untouched
+        if (!ew.isTagged() && !ew.hasExternalReferrers())
+            m_dirty.add(ew);
         return ew;
     }
 
@@ -170,23 +328,64 @@ public class WayEditor {
         emp = new EdMultipolygon(this, rel);
         m_originalMultipolygons.put(rel.getUniqueId(), emp);
         m_multipolygons.add(emp);
+        m_multipolygonIndex.markDirty(emp);
         return emp;
     }
 
+    /**
+     * Called by EdObjects whenever they are modified or deleted, keeps spatial
+     * indexes and the dirty set up to date. Changed node moves its ways, changed
+     * way moves its multipolygons.
+     * @param obj changed object
+     */
+    void objectChanged(EdObject obj) {
+        m_dirty.add(obj);
+        indexChanged(obj);
+    }
+
+    /**
+     * Called by EdObjects when they lose an editor referrer, they might be
+     * no longer required.
+     * @param obj changed object
+     */
+    void referrersChanged(EdObject obj) {
+        m_dirty.add(obj);
+    }
+
+    private void indexChanged(EdObject obj) {
+        if (obj.isNode()) {
+            m_nodeIndex.markDirty((EdNode)obj);
+            for (EdWay way: obj.getEditorReferrers(EdWay.class))
+                indexChanged(way);
+        }
+        else if (obj.isWay()) {
+            m_wayIndex.markDirty((EdWay)obj);
+            for (EdMultipolygon mp: obj.getEditorReferrers(EdMultipolygon.class))
+                m_multipolygonIndex.markDirty(mp);
+        }
+        else if (obj.isMultipolygon()) {
+            m_multipolygonIndex.markDirty((EdMultipolygon)obj);
+        }
+    }
+
     boolean isEdited(OsmPrimitive prim) {
+        return editedObject(prim) != null;
+    }
+
+    private EdObject editedObject(OsmPrimitive prim) {
         if (prim instanceof Node) {
             EdNode en = m_originalNodes.get(prim.getUniqueId());
-            return en != null && en.originalNode() == prim;
+            return en != null && en.originalNode() == prim ? en : null;
         }
         if (prim instanceof Way) {
             EdWay ew = m_originalWays.get(prim.getUniqueId());
-            return ew != null && ew.originalWay() == prim;
+            return ew != null && ew.originalWay() == prim ? ew : null;
         }
         if (prim instanceof Relation) {
             EdMultipolygon emp = m_originalMultipolygons.get(prim.getUniqueId());
-            return emp != null && emp.originalMultipolygon() == prim;
+            return emp != null && emp.originalMultipolygon() == prim ? emp : null;
         }
-        return false;
+        return null;
     }
 
     boolean ownedByEditor(List<EdNode> list) {
@@ -204,14 +403,25 @@ public class WayEditor {
         return obj.getEditor() == this;
     }
 
-    Set<EdNode> findExistingNodesTouchingWaySegment(GeomDeviation tolerance, LatLonSize oversize, EdNode x, EdNode y, IEdNodePredicate filter) {
-        Node nx = new Node(x.currentNodeUnsafe());
-        Node ny = new Node(y.currentNodeUnsafe());
-        BBox bbox = new BBox ((INode) nx);
-        bbox.addPrimitive (ny, 0);
-        BBoxUtils.extendBBox(bbox, oversize);
-
-        Set<EdNode> result = new HashSet<>();
+    /**
+     * Finds existing nodes touching segments of a way and assigns each of them to the
+     * closest touching segment (the first one of equally close segments).
+     * Uses a single DataSet query for the whole way.
+     * @param tolerance maximal deviation tolerances of touching nodes
+     * @param coords coordinates of way nodes with a spare slot for tested nodes, see {@link NodeCoordinates#scratchSlot()}
+     * @param segments index of way segments, extended by search oversize
+     * @param filter predicate to rule out unwanted nodes
+     * @return map of touching nodes to (distance, segment index) pairs
+     */
+    Map<EdNode, Pair<Double, Integer>> findExistingNodesTouchingWay(GeomDeviation tolerance, NodeCoordinates coords, EdWaySegmentIndex segments, IEdNodePredicate filter) {
+        Map<EdNode, Pair<Double, Integer>> result = new HashMap<>();
+        if (segments.isEmpty())
+            return result;
+
+        BBox bbox = segments.getBBox();
+        int point = coords.scratchSlot();
+        int[] candidates = new int[segments.segmentCount()];
+        double[] dist = new double[1];
 
         // (1) edited nodes
         for (EdNode ednd: searchEdNodes(bbox)) {
@@ -219,9 +429,10 @@ public class WayEditor {
                 continue;
             if (!filter.evaluate(ednd))
                 continue;
-            if (!GeomUtils.pointDeviationFromSegment(ednd.currentNodeUnsafe(), nx, ny).inTolerance(tolerance))
-                continue;
-            result.add(ednd);
+            coords.set(point, ednd);
+            int best = closestTouchingSegment(tolerance, coords, point, segments, candidates, dist);
+            if (best >= 0)
+                result.put(ednd, new Pair<> (dist[0], best));
         }
 
         // (2) original nodes that are not tracked yet
@@ -232,14 +443,43 @@ public class WayEditor {
                 continue;
             if (!filter.evaluate(nd))
                 continue;
-            if (!GeomUtils.pointDeviationFromSegment(nd, nx, ny).inTolerance(tolerance))
-                continue;
-            result.add(useNode(nd));
+            coords.set(point, nd);
+            int best = closestTouchingSegment(tolerance, coords, point, segments, candidates, dist);
+            if (best >= 0)
+                result.put(useNode(nd), new Pair<> (dist[0], best));
         }
 
         return result;
     }
 
+    /**
+     * Finds the closest segment touching a point, the first one of equally close segments.
+     * @param tolerance maximal deviation tolerances
+     * @param coords coordinates of way nodes and the point
+     * @param point slot of the point in coords
+     * @param segments index of way segments
+     * @param candidates work array of segmentCount() elements
+     * @param dist output, dist[0] is set to distance of the point to the returned segment
+     * @return index of the segment or -1 if no segment touches the point
+     */
+    static int closestTouchingSegment(GeomDeviation tolerance, NodeCoordinates coords, int point, EdWaySegmentIndex segments, int[] candidates, double[] dist) {
+        int best_segment = -1;
+        double best_dist = 0;
+        int count = segments.search(coords.lat(point), coords.lon(point), candidates);
+        for (int j = 0; j < count; j++) {
+            int i = candidates[j];
+            double d = GeomUtils.pointDistanceFromSegmentInTolerance(tolerance, coords, point, i, i+1);
+            if (d < 0)
+                continue;
+            if (best_segment < 0 || best_dist > d) {
+                best_segment = i;
+                best_dist = d;
+            }
+        }
+        dist[0] = best_dist;
+        return best_segment;
+    }
+
     Set<EdNode> findExistingNodesInBBox(BBox bbox, IEdNodePredicate filter) {
 
         Set<EdNode> result = new HashSet<>();
@@ -353,47 +593,90 @@ public class WayEditor {
     }
 
     public List<Command> finalizeEdit (EdObject required_object, double resurrect_dist) {
+        return finalizeEdit (required_object == null ? Collections.<EdObject>emptyList() : Collections.singletonList(required_object), resurrect_dist);
+    }
+
+    public List<Command> finalizeEdit (Collection<EdObject> required_objects, double resurrect_dist) {
 
         System.out.println("WayEditor.finalizeEdit(): ");
 
-        // reset modified flags, if possible
-        updateModifiedFlags();
+        // Only dirty objects, required objects and their direct components are
+        // visited. Any other object is an untouched original which was tagged
+        // or referenced when wrapped and didn't lose a referrer since then,
+        // so it is required and needs no command.
+        Set<EdNode> cand_nodes = new HashSet<>();
+        Set<EdWay> cand_ways = new HashSet<>();
+        Set<EdMultipolygon> cand_multipolygons = new HashSet<>();
+        List<EdObject> candidates = new ArrayList<>(m_dirty);
+        candidates.addAll(required_objects);
+        for (EdObject obj: candidates) {
+            if (obj == null)
+                continue;
+            if (obj.isNode() && m_nodes.contains((EdNode)obj))
+                cand_nodes.add((EdNode)obj);
+            else if (obj.isWay() && m_ways.contains((EdWay)obj))
+                cand_ways.add((EdWay)obj);
+            else if (obj.isMultipolygon() && m_multipolygons.contains((EdMultipolygon)obj))
+                cand_multipolygons.add((EdMultipolygon)obj);
+        }
+        for (EdMultipolygon mp: cand_multipolygons)
+            if (!mp.isDeleted())
+                cand_ways.addAll(mp.allWays());
+        for (EdWay w: cand_ways) {
+            if (w.isDeleted())
+                continue;
+            for (int i = 0; i < w.getNodesCount(); i++)
+                cand_nodes.add(w.getNode(i));
+        }
+
+        // reset modified flags, if possible (only dirty objects can be modified)
+        for (EdNode n: cand_nodes)
+            if (!n.isDeleted())
+                n.updateModifiedFlag();
+        for (EdWay w: cand_ways)
+            if (!w.isDeleted())
+                w.updateModifiedFlag();
+        for (EdMultipolygon mp: cand_multipolygons)
+            if (!mp.isDeleted())
+                mp.updateModifiedFlag();
 
-        // remember required object components
-        Set<EdWay> required_object_ways = null;
-        EdNode required_object_node = null;
-        if (required_object != null && !required_object.isDeleted()) {
+        // remember required objects components
+        Set<EdWay> required_object_ways = new HashSet<>();
+        Set<EdNode> required_object_nodes = new HashSet<>();
+        for (EdObject required_object: required_objects) {
+            if (required_object == null || required_object.isDeleted())
+                continue;
             if (required_object.isNode())
-                required_object_node = (EdNode)required_object;
-            else {
-                required_object_ways = new HashSet<>();
-                if (required_object.isWay())
-                    required_object_ways.add((EdWay)required_object);
-                else if (required_object.isMultipolygon()) {
-                    required_object_ways.addAll(((EdMultipolygon)required_object).allWays());
-                }
-            }
+                required_object_nodes.add((EdNode)required_object);
+            else if (required_object.isWay())
+                required_object_ways.add((EdWay)required_object);
+            else if (required_object.isMultipolygon())
+                required_object_ways.addAll(((EdMultipolygon)required_object).allWays());
         }
 
-        // get ways and nodes required in the resulting DataSet
+        // get candidate ways and nodes required in the resulting DataSet
         Set<EdWay> required_ways = new HashSet<> ();
         Set<EdNode> required_nodes = new HashSet<> ();
-        for (EdWay w: m_ways) {
+        for (EdWay w: cand_ways) {
             if (w.isDeleted())
                 continue;
-            if (w.hasEditorReferrers() || w.isTagged() || w.hasExternalReferrers() || (required_object_ways != null && required_object_ways.contains(w))) {
+            if (w.hasEditorReferrers() || w.isTagged() || w.hasExternalReferrers() || required_object_ways.contains(w))
                 required_ways.add(w);
-                for (int i = 0; i < w.getNodesCount(); i++)
-                    required_nodes.add(w.getNode(i));
-            }
         }
-        for (EdNode n: m_nodes) {
+        for (EdNode n: cand_nodes) {
             if (n.isDeleted())
                 continue;
-            if (required_nodes.contains(n))
-                continue;
-            if (n.isTagged() || n.hasExternalReferrers() || required_object_node == n)
+            if (n.isTagged() || n.hasExternalReferrers() || required_object_nodes.contains(n)) {
                 required_nodes.add(n);
+                continue;
+            }
+            // node of a required way, non-candidate ways are always required
+            for (EdWay w: n.getEditorReferrers(EdWay.class)) {
+                if (!w.isDeleted() && (!cand_ways.contains(w) || required_ways.contains(w))) {
+                    required_nodes.add(n);
+                    break;
+                }
+            }
         }
 
         // nodes to be added/changed
@@ -408,7 +691,7 @@ public class WayEditor {
 
         // original nodes to be deleted
         Set<EdNode> delete_nodes = new HashSet<> ();
-        for (EdNode n: m_nodes) {
+        for (EdNode n: cand_nodes) {
             if (!n.hasOriginal())
                 continue;
             if (required_nodes.contains(n))
@@ -438,7 +721,7 @@ public class WayEditor {
 
         // ways to be deleted
         Set<EdWay> delete_ways = new HashSet<>();
-        for (EdWay w: m_ways) {
+        for (EdWay w: cand_ways) {
             if (!w.hasOriginal())
                 continue;
             if (required_ways.contains(w))
@@ -469,7 +752,7 @@ public class WayEditor {
         }
 
         // multipolygon commands
-        for (EdMultipolygon emp: m_multipolygons) {
+        for (EdMultipolygon emp: cand_multipolygons) {
             if (!emp.hasOriginal() && !emp.isDeleted()) {
                 cmds.add(new AddCommand(m_dataSet, emp.finalMultipolygon()));
                 System.out.println(" - add multipolygon: " + Long.toString(emp.getUniqueId()));
@@ -499,7 +782,7 @@ public class WayEditor {
 
     private List<EdNode> searchEdNodes(BBox bbox) {
         List<EdNode> result = new ArrayList<>();
-        for (EdNode ednd: m_nodes) {
+        for (EdNode ednd: m_nodeIndex.search(bbox)) {
             if (ednd.isDeleted())
                 continue;
             if (bbox.bounds(ednd.getCoor()))
@@ -510,7 +793,7 @@ public class WayEditor {
 
     private List<EdMultipolygon> searchEdMultipolygons(BBox bbox) {
         List<EdMultipolygon> result = new ArrayList<>();
-        for (EdMultipolygon edmp: m_multipolygons) {
+        for (EdMultipolygon edmp: m_multipolygonIndex.search(bbox)) {
             if (edmp.isDeleted())
                 continue;
             if (bbox.intersects(edmp.getBBox()))
@@ -521,7 +804,7 @@ public class WayEditor {
 
     private List<EdWay> searchEdWays(BBox bbox) {
         List<EdWay> result = new ArrayList<>();
-        for (EdWay edw: m_ways) {
+        for (EdWay edw: m_wayIndex.search(bbox)) {
             if (edw.isDeleted())
                 continue;
             if (bbox.intersects(edw.getBBox()))
@@ -643,6 +926,80 @@ public class WayEditor {
         return areas;
     }
 
+    // lower bound of Earth radius used by great circle distance, keeps the pre-filter conservative
+    private static final double minEarthRadiusMeters = 6350000.0;
+
+    // nodes near poles or with huge resurrect distance are compared with all added nodes
+    private static final int maxResurrectLonCells = 64;
+    private static final double minResurrectCellSize = 0.000001;
+
+    private static long resurrectGridCell(double deg, double cell_size) {
+        return (long)Math.floor(deg / cell_size);
+    }
+
+    private static Long resurrectGridKey(long ilat, long ilon) {
+        return (ilat << 32) ^ (ilon & 0xffffffffL);
+    }
+
+    /**
+     * Returns max. longitude difference of two points within given distance, if
+     * the first point has given latitude and the second one lies within max_dlat.
+     * From haversine formula: sin(d/2R) &gt;= cos(max_lat) * sin(dlon/2).
+     */
+    private static double resurrectMaxLonDifference(double lat, double max_dlat, double dist) {
+        double max_lat = Math.abs(lat) + max_dlat;
+        if (max_lat >= 90.0)
+            return 180.0;
+        double s = Math.sin(dist / minEarthRadiusMeters / 2) / Math.cos(Math.toRadians(max_lat));
+        if (s >= 1.0)
+            return 180.0;
+        return Math.toDegrees(2 * Math.asin(s));
+    }
+
+    private static void collectResurrectCandidates(HashMap<Long, List<Integer>> grid, int count, LatLon ll, double cell_size, double max_dlat, double max_dlon, List<Integer> candidates) {
+        candidates.clear();
+
+        double min_lon = ll.lon() - max_dlon;
+        double max_lon = ll.lon() + max_dlon;
+        if (max_dlon >= 180.0 || (max_lon - min_lon) / cell_size > maxResurrectLonCells) {
+            for (int i = 0; i < count; i++)
+                candidates.add(i);
+            return;
+        }
+
+        long min_ilat = resurrectGridCell(ll.lat() - max_dlat, cell_size);
+        long max_ilat = resurrectGridCell(ll.lat() + max_dlat, cell_size);
+
+        // longitude window can wrap around the antimeridian
+        List<double[]> lon_ranges = new ArrayList<>(2);
+        if (min_lon < -180.0) {
+            lon_ranges.add(new double[] { min_lon + 360.0, 180.0 });
+            lon_ranges.add(new double[] { -180.0, max_lon });
+        }
+        else if (max_lon > 180.0) {
+            lon_ranges.add(new double[] { min_lon, 180.0 });
+            lon_ranges.add(new double[] { -180.0, max_lon - 360.0 });
+        }
+        else {
+            lon_ranges.add(new double[] { min_lon, max_lon });
+        }
+
+        for (double[] range: lon_ranges) {
+            long min_ilon = resurrectGridCell(range[0], cell_size);
+            long max_ilon = resurrectGridCell(range[1], cell_size);
+            for (long ilat = min_ilat; ilat <= max_ilat; ilat++) {
+                for (long ilon = min_ilon; ilon <= max_ilon; ilon++) {
+                    List<Integer> list = grid.get(resurrectGridKey(ilat, ilon));
+                    if (list != null)
+                        candidates.addAll(list);
+                }
+            }
+        }
+
+        // keep order of add_nodes
+        Collections.sort(candidates);
+    }
+
     class ResurrectableNodesPair implements Comparable<ResurrectableNodesPair> {
         public final EdNode delete_node;
         public final EdNode add_node;
@@ -665,7 +1022,26 @@ public class WayEditor {
         if (add_nodes.isEmpty() || delete_nodes.isEmpty())
             return null;
 
+        // Grid of added nodes, cell size is the max. latitude difference of a resurrectable pair.
+        // Nodes are referenced by their position in add_nodes, candidate pairs are queued
+        // in the same order as by comparing all pairs, so the greedy matching doesn't change.
+        double max_dlat = Math.toDegrees(resurrect_dist / minEarthRadiusMeters);
+        double cell_size = Math.max(max_dlat, minResurrectCellSize);
+        EdNode[] adds = add_nodes.toArray(new EdNode[add_nodes.size()]);
+        HashMap<Long, List<Integer>> grid = new HashMap<>();
+        for (int i = 0; i < adds.length; i++) {
+            LatLon ll = adds[i].getCoor();
+            Long key = resurrectGridKey(resurrectGridCell(ll.lat(), cell_size), resurrectGridCell(ll.lon(), cell_size));
+            List<Integer> list = grid.get(key);
+            if (list == null) {
+                list = new ArrayList<>(2);
+                grid.put(key, list);
+            }
+            list.add(i);
+        }
+
         PriorityQueue<ResurrectableNodesPair> queue = new PriorityQueue<>();
+        List<Integer> candidates = new ArrayList<>();
 
         for (EdNode dn: delete_nodes) {
 
@@ -675,8 +1051,22 @@ public class WayEditor {
             if (dn.isDeleted() || dnorig.isTagged())
                 continue;
 
-            for (EdNode an: add_nodes) {
-                double dist = dnorig.greatCircleDistance(an.getCoor());
+            LatLon dll = dnorig.getCoor();
+            double max_dlon = resurrectMaxLonDifference(dll.lat(), max_dlat, resurrect_dist);
+            collectResurrectCandidates(grid, adds.length, dll, cell_size, max_dlat, max_dlon, candidates);
+
+            for (int i: candidates) {
+                EdNode an = adds[i];
+                LatLon all = an.getCoor();
+
+                // flat pre-filter, never rejects a pair within resurrect_dist
+                if (Math.abs(all.lat() - dll.lat()) > max_dlat)
+                    continue;
+                double dlon = Math.abs(all.lon() - dll.lon());
+                if (Math.min(dlon, 360.0 - dlon) > max_dlon)
+                    continue;
+
+                double dist = dnorig.greatCircleDistance(all);
                 if (dist > resurrect_dist)
                     continue;
                 queue.add(new ResurrectableNodesPair (an, dn, dist));
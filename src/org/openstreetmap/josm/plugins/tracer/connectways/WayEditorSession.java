@@ -0,0 +1,147 @@
+/**
+ *  Tracer - plugin for JOSM
+ *  Jan Bilak, Marian Kyral, Martin Svec
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.openstreetmap.josm.plugins.tracer.connectways;
+
+import java.util.List;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.event.AbstractDatasetChangedEvent;
+import org.openstreetmap.josm.data.osm.event.DataChangedEvent;
+import org.openstreetmap.josm.data.osm.event.DataSetListenerAdapter;
+import org.openstreetmap.josm.data.osm.event.PrimitivesAddedEvent;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.layer.LayerManager;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+/**
+ * Long-lived WayEditor shared by consecutive traces in the same DataSet.
+ * EdNode/EdWay/EdMultipolygon wrappers of untouched neighbouring primitives
+ * are kept between traces, so tracing in a dense block doesn't re-wrap the
+ * same neighbours again and again. Wrappers of primitives changed in the
+ * DataSet (by traces, undo/redo, user edits or downloads) are dropped by
+ * a DataSet listener. Each trace is still committed as a separate command.
+ * The session is disposed when the layer of its DataSet is removed.
+ * Enabled by tracer.shared_editor_session preference, must be used in EDT only.
+ */
+public final class WayEditorSession implements DataSetListenerAdapter.Listener, LayerManager.LayerChangeListener {
+
+    private static WayEditorSession m_session;
+
+    private final WayEditor m_editor;
+    private final DataSetListenerAdapter m_listener;
+    private boolean m_inUse;
+
+    private WayEditorSession (DataSet dataset) {
+        m_editor = new WayEditor (dataset);
+        m_listener = new DataSetListenerAdapter (this);
+        dataset.addDataSetListener (m_listener);
+        MainApplication.getLayerManager().addLayerChangeListener (this);
+    }
+
+    /**
+     * Returns editor for the next trace. If the shared session is disabled or busy,
+     * a new editor is returned.
+     * @param dataset DataSet to be edited
+     * @return WayEditor
+     */
+    public static WayEditor beginEdit (DataSet dataset) {
+        if (!Config.getPref().getBoolean("tracer.shared_editor_session", false))
+            return new WayEditor (dataset);
+
+        if (m_session != null && m_session.m_editor.getDataSet() != dataset) {
+            m_session.dispose ();
+            m_session = null;
+        }
+        if (m_session == null)
+            m_session = new WayEditorSession (dataset);
+        if (m_session.m_inUse)
+            return new WayEditor (dataset);
+
+        // don't let the session grow without limits while the user moves around the map
+        int max_objects = Config.getPref().getInt("tracer.shared_editor_session_max_objects", 20000);
+        if (max_objects > 0 && m_session.m_editor.getObjectCount() > max_objects) {
+            System.out.println("WayEditorSession: too many objects, resetting");
+            m_session.m_editor.invalidateAll ();
+        }
+
+        m_session.m_inUse = true;
+        m_session.m_editor.beginEdit ();
+        System.out.println("WayEditorSession: reused objects: " + Integer.toString(m_session.m_editor.getObjectCount()));
+        return m_session.m_editor;
+    }
+
+    /**
+     * Finishes a trace started by {@link #beginEdit}, must be called after the
+     * trace commands were executed or discarded.
+     * @param editor Editor returned by beginEdit()
+     */
+    public static void endEdit (WayEditor editor) {
+        if (m_session == null || m_session.m_editor != editor)
+            return;
+        m_session.m_editor.endEdit ();
+        m_session.m_inUse = false;
+    }
+
+    private void dispose () {
+        MainApplication.getLayerManager().removeLayerChangeListener (this);
+        m_editor.getDataSet().removeDataSetListener (m_listener);
+        m_editor.invalidateAll ();
+    }
+
+    @Override
+    public void layerAdded (LayerManager.LayerAddEvent e) {
+    }
+
+    @Override
+    public void layerRemoving (LayerManager.LayerRemoveEvent e) {
+        // don't keep removed DataSet alive, an unfinished trace keeps its editor
+        if (m_session != this || !(e.getRemovedLayer() instanceof OsmDataLayer))
+            return;
+        if (((OsmDataLayer)e.getRemovedLayer()).getDataSet() != m_editor.getDataSet())
+            return;
+        System.out.println("WayEditorSession: layer removed, disposing session");
+        dispose ();
+        m_session = null;
+    }
+
+    @Override
+    public void layerOrderChanged (LayerManager.LayerOrderChangeEvent e) {
+    }
+
+    @Override
+    public void processDatasetEvent (AbstractDatasetChangedEvent event) {
+        if (event instanceof DataChangedEvent) {
+            List<AbstractDatasetChangedEvent> events = ((DataChangedEvent)event).getEvents();
+            if (events == null) {
+                m_editor.invalidateAll ();
+                return;
+            }
+            for (AbstractDatasetChangedEvent e: events)
+                processDatasetEvent (e);
+            return;
+        }
+
+        // newly added primitives have no wrappers
+        if (event instanceof PrimitivesAddedEvent)
+            return;
+
+        m_editor.invalidate (event.getPrimitives());
+    }
+}
@@ -22,6 +22,8 @@ package org.openstreetmap.josm.plugins.tracer.modules.building;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.openstreetmap.josm.data.coor.LatLon;
 import org.openstreetmap.josm.data.osm.search.SearchCompiler;
 import org.openstreetmap.josm.data.osm.search.SearchParseError;
@@ -48,12 +50,27 @@ import org.openstreetmap.josm.plugins.tracer.connectways.ReuseNearNodeMethod;
 import org.openstreetmap.josm.plugins.tracer.connectways.WayEditor;
 import org.openstreetmap.josm.plugins.tracer.modules.ruian.RuianRecord;
 import static org.openstreetmap.josm.tools.I18n.tr;
+import org.openstreetmap.josm.spi.preferences.Config;
 import org.openstreetmap.josm.tools.Pair;
 
 import org.openstreetmap.josm.plugins.tracer.TracerUtils;
 
 public abstract class BuildingTracerModule extends TracerModule {
 
+    private static final ExecutorService m_downloadExecutor;
+
+    static {
+        int threads = Config.getPref().getInt("tracer.building.download_threads", 2);
+        if (threads > 0) {
+            if (threads > 20) // avoid stupid values
+                threads = 20;
+            m_downloadExecutor = Executors.newFixedThreadPool(threads);
+        }
+        else {
+            m_downloadExecutor = null;
+        }
+    }
+
     private static final double oversizeInDataBoundsMeters = 2.0;
     private static final double automaticOsmDownloadMeters = 400.0;
 
@@ -175,6 +192,11 @@ public abstract class BuildingTracerModule extends TracerModule {
             this.m_performNearBuildingsEdit = !m_ctrl;
         }
 
+        @Override
+        protected ExecutorService getDownloadRecordExecutor() {
+            return m_downloadExecutor;
+        }
+
         @Override
         protected EdObject createTracedPolygonImpl(WayEditor editor) {
 
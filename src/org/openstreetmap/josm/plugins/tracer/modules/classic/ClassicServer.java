@@ -32,7 +32,7 @@ public final class ClassicServer {
     private final static int classicServerTimeout = 60000;
 
     private String callServer(String urlString) throws IOException {
-        try (BufferedReader reader = TracerUtils.openUrlStream (urlString, classicServerTimeout)) {
+        try (BufferedReader reader = TracerUtils.openUrlStream (urlString, TracerUtils.getModuleTimeout("classic", classicServerTimeout))) {
             StringBuilder sb = new StringBuilder();
             String line;
             while ((line = reader.readLine()) != null) {
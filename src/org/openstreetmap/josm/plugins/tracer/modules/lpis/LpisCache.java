@@ -19,22 +19,61 @@
 
 package org.openstreetmap.josm.plugins.tracer.modules.lpis;
 
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.plugins.tracer.ISpatialCache;
 import org.openstreetmap.josm.plugins.tracer.QuadCache;
+import org.openstreetmap.josm.plugins.tracer.RTreeCache;
+import org.openstreetmap.josm.plugins.tracer.TracerRecord;
 import org.openstreetmap.josm.plugins.tracer.connectways.LatLonSize;
+import org.openstreetmap.josm.spi.preferences.Config;
 
+/**
+ * Cache of downloaded LPIS records. The cache is bounded by number of records
+ * and by estimated memory size, least recently used records are evicted first.
+ */
 public class LpisCache {
     private final Object m_lock;
-    private final Map<Long, LpisRecord> m_records;
-    private final QuadCache<LpisRecord> m_cache;
+    private final LinkedHashMap<Long, CachedRecord> m_records; // access ordered, eldest is least recently used
+    private final ISpatialCache<LpisRecord> m_cache;
+
+    private final int m_maxRecords;
+    private final long m_maxBytes;
+    private long m_bytes;
+
+    private long m_hits;
+    private long m_misses;
+    private long m_evictions;
+
+    // records report size of their lazily built caches (projected rings and index)
+    private final TracerRecord.IMemorySizeListener m_memorySizeListener = new TracerRecord.IMemorySizeListener () {
+        @Override
+        public void memorySizeChanged (TracerRecord record, long delta) {
+            synchronized (m_lock) {
+                CachedRecord cached = m_records.get(((LpisRecord)record).getLpisID());
+                if (cached == null || cached.m_record != record)
+                    return;
+                cached.m_bytes += delta;
+                m_bytes += delta;
+            }
+        }
+    };
 
     public LpisCache (LatLonSize llsize) {
         m_lock = new Object ();
-        m_records = new HashMap<> ();
-        m_cache = new QuadCache<> (llsize);
+        m_records = new LinkedHashMap<> (16, 0.75f, true);
+        if (Config.getPref().getBoolean("tracer.lpis.rtree_cache", true))
+            m_cache = new RTreeCache<> ();
+        else
+            m_cache = new QuadCache<> (llsize);
+
+        // zero or negative value means unlimited
+        m_maxRecords = Config.getPref().getInt("tracer.lpis.cache_max_records", 20000);
+        m_maxBytes = (long)Config.getPref().getInt("tracer.lpis.cache_max_mbytes", 128) * 1024 * 1024;
+        m_bytes = 0;
     }
 
     public boolean add (LpisRecord record) {
@@ -44,8 +83,14 @@ public class LpisCache {
             if (m_records.containsKey(record.getLpisID()))
                 return false;
 
-            m_records.put(record.getLpisID(), record);
+            // size grows when lazy caches of the record are built, the listener
+            // adds the growth, so remember the total counted for the record
+            record.setMemorySizeListener (m_memorySizeListener);
+            long bytes = record.getEstimatedMemorySize();
+            m_records.put(record.getLpisID(), new CachedRecord(record, bytes));
             m_cache.add(record);
+            m_bytes += bytes;
+            evict ();
             return true;
         }
     }
@@ -56,21 +101,105 @@ public class LpisCache {
         }
     }
 
+    LpisRecord getByLpisID (long id) {
+        synchronized (m_lock) {
+            CachedRecord cached = m_records.get(id);
+            return cached == null ? null : cached.m_record;
+        }
+    }
+
     public LpisRecord get (LatLon latlon) {
         synchronized (m_lock) {
-            List<LpisRecord> list = m_cache.search(latlon);
-            if (list == null) {
-                System.out.println ("LpisCache: miss");
-                return null;
-            }
-            if (list.size() == 1) {
-                LpisRecord record = list.get(0);
-                System.out.println ("LpisCache: hit, id=" + Long.toString(record.getLpisID()));
-                return record;
-            }
-            if (list.size() > 1)
-                System.out.println("LpisCache: OVERLAPPING OBJECTS IN CACHE!");
+            // search may build lazy caches of tested records and grow m_bytes
+            LpisRecord record = search (latlon);
+            evict ();
+            return record;
+        }
+    }
+
+    private LpisRecord search (LatLon latlon) {
+        List<LpisRecord> list = m_cache.search(latlon);
+        if (list == null) {
+            ++m_misses;
+            System.out.println ("LpisCache: miss, " + statistics ());
             return null;
         }
+        if (list.size() == 1) {
+            LpisRecord record = list.get(0);
+            m_records.get(record.getLpisID()); // mark as recently used
+            ++m_hits;
+            System.out.println ("LpisCache: hit, id=" + Long.toString(record.getLpisID()) + ", " + statistics ());
+            return record;
+        }
+        if (list.size() > 1)
+            System.out.println("LpisCache: OVERLAPPING OBJECTS IN CACHE!");
+        ++m_misses;
+        return null;
+    }
+
+    public long getHits () {
+        synchronized (m_lock) {
+            return m_hits;
+        }
+    }
+
+    public long getMisses () {
+        synchronized (m_lock) {
+            return m_misses;
+        }
+    }
+
+    public long getEvictions () {
+        synchronized (m_lock) {
+            return m_evictions;
+        }
+    }
+
+    public int getRecordCount () {
+        synchronized (m_lock) {
+            return m_records.size();
+        }
+    }
+
+    public long getEstimatedBytes () {
+        synchronized (m_lock) {
+            return m_bytes;
+        }
+    }
+
+    private boolean overLimit () {
+        return (m_maxRecords > 0 && m_records.size() > m_maxRecords) ||
+            (m_maxBytes > 0 && m_bytes > m_maxBytes);
+    }
+
+    private void evict () {
+        // never evict the most recently added record
+        Iterator<Map.Entry<Long, CachedRecord>> it = m_records.entrySet().iterator();
+        while (overLimit () && m_records.size() > 1) {
+            CachedRecord cached = it.next().getValue();
+            it.remove();
+            m_cache.remove(cached.m_record);
+            cached.m_record.setMemorySizeListener (null);
+            m_bytes -= cached.m_bytes;
+            ++m_evictions;
+        }
+    }
+
+    private String statistics () {
+        return "records: " + Integer.toString(m_records.size()) +
+            ", bytes: " + Long.toString(m_bytes) +
+            ", hits: " + Long.toString(m_hits) +
+            ", misses: " + Long.toString(m_misses) +
+            ", evictions: " + Long.toString(m_evictions);
+    }
+
+    private static final class CachedRecord {
+        private final LpisRecord m_record;
+        private long m_bytes; // estimated size counted in m_bytes
+
+        CachedRecord (LpisRecord record, long bytes) {
+            m_record = record;
+            m_bytes = bytes;
+        }
     }
 }
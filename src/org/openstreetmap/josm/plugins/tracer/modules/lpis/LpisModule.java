@@ -24,6 +24,7 @@ import java.util.*;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import org.openstreetmap.josm.data.Bounds;
 import org.openstreetmap.josm.data.coor.LatLon;
 import org.openstreetmap.josm.data.osm.BBox;
 import org.openstreetmap.josm.data.osm.search.SearchCompiler;
@@ -34,6 +35,7 @@ import org.openstreetmap.josm.gui.MainApplication;
 import org.openstreetmap.josm.gui.util.GuiHelper;
 import org.openstreetmap.josm.gui.util.HighlightHelper;
 import org.openstreetmap.josm.plugins.tracer.CombineTagsResolver;
+import org.openstreetmap.josm.plugins.tracer.IBatchTracerModule;
 import org.openstreetmap.josm.plugins.tracer.TracerModule;
 import org.openstreetmap.josm.plugins.tracer.TracerRecord;
 import org.openstreetmap.josm.plugins.tracer.connectways.*;
@@ -45,10 +47,12 @@ import static org.openstreetmap.josm.tools.I18n.*;
 import org.openstreetmap.josm.tools.ImageProvider;
 import org.openstreetmap.josm.tools.Pair;
 
-public final class LpisModule extends TracerModule  {
+public final class LpisModule extends TracerModule implements IBatchTracerModule {
 
     private boolean moduleEnabled;
     private static final ExecutorService m_downloadExecutor;
+    private static final ExecutorService m_prefetchExecutor;
+    private static final int m_prefetchConcurrency;
     HighlightHelper highlightHelper = new HighlightHelper();
 
     static {
@@ -61,15 +65,27 @@ public final class LpisModule extends TracerModule  {
         else {
             m_downloadExecutor = null;
         }
+
+        // Prefetch shares the download pool, but always leaves one thread free for foreground downloads
+        int prefetch_threads = Math.min(Math.max(Config.getPref().getInt("tracer.lpis.prefetch_threads", 3), 1), 20);
+        if (threads > 1) {
+            m_prefetchExecutor = m_downloadExecutor;
+            m_prefetchConcurrency = Math.min(prefetch_threads, threads - 1);
+        }
+        else {
+            m_prefetchExecutor = Executors.newFixedThreadPool(prefetch_threads);
+            m_prefetchConcurrency = prefetch_threads;
+        }
     }
 
     // calibrate cache tile's LatLonSize according to a point in the middle of the Czech Republic
     private static final double cacheTileSizeMeters = 750.0;
     private static final LatLon cacheTileCalibrationLatLon = new LatLon (49.79633635284708, 15.572776799999998);
     private static final LatLonSize cacheTileSize = LatLonSize.get(cacheTileCalibrationLatLon, cacheTileSizeMeters);
+    private static final int batchMaxTiles = 50;
 
     private final LpisServer m_lpisServer = new LpisServer (lpisUrl, cacheTileSize);
-    private final LpisPrefetch m_lpisPrefetch = new LpisPrefetch (cacheTileSize, m_lpisServer);
+    private final LpisPrefetch m_lpisPrefetch = new LpisPrefetch (cacheTileSize, m_lpisServer, m_prefetchExecutor, m_prefetchConcurrency);
 
     private static final double oversizeInDataBoundsMeters = 5.0;
     private static final double automaticOsmDownloadMeters = 900.0;
@@ -144,6 +160,11 @@ public final class LpisModule extends TracerModule  {
         return new LpisTracerTask (pos, ctrl, alt, shift);
     }
 
+    @Override
+    public List<? extends TracerRecord> downloadRecords(Bounds bounds) throws Exception {
+        return m_lpisServer.getRecords(bounds, batchMaxTiles);
+    }
+
     class ReuseLanduseNearNodes implements IReuseNearNodePredicate {
 
         // distance tolerancies are in meters
@@ -21,124 +21,161 @@ package org.openstreetmap.josm.plugins.tracer.modules.lpis;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import org.openstreetmap.josm.data.coor.LatLon;
-import org.openstreetmap.josm.data.osm.BBox;
 import org.openstreetmap.josm.plugins.tracer.QuadCache;
 import org.openstreetmap.josm.plugins.tracer.connectways.LatLonSize;
 
+/**
+ * Background prefetch of LPIS tiles around traced positions. Tiles are downloaded
+ * in parallel with bounded concurrency, nearest tiles and tiles lying in the
+ * direction of mapper's movement go first. Queued tiles the mapper has left
+ * behind are dropped.
+ */
 public class LpisPrefetch {
 
-    private static final ExecutorService m_prefetchExecutor = Executors.newSingleThreadExecutor();
+    // bias of tiles lying in the direction of movement, in tile units
+    private static final double directionBias = 0.75;
+    // minimal cosine between tile offset and movement direction to prefetch tiles two steps ahead
+    private static final double aheadCosine = 0.7;
 
     private final LatLonSize m_quadSize;
     private final LpisServer m_lpisServer;
-    private final Set<QuadCache.QuadIndex> m_prefetchedTiles = new HashSet<> ();
+    private final ExecutorService m_executor;
+    private final int m_maxConcurrency;
 
     private final Object m_lock = new Object ();
-    private PrefetchQueue <QuadCache.QuadIndex> m_prefetchQueue = null;  // m_lock, null means prefetching task is not running
-
-    public LpisPrefetch (LatLonSize quad_size, LpisServer server) {
+    private final Set<QuadCache.QuadIndex> m_prefetchedTiles = new HashSet<> (); // m_lock
+    private final Set<QuadCache.QuadIndex> m_runningTiles = new HashSet<> ();    // m_lock
+    private final Set<QuadCache.QuadIndex> m_queuedTiles = new HashSet<> ();     // m_lock
+    private PriorityQueue<PrefetchTile> m_queue = new PriorityQueue<> ();        // m_lock
+
+    private double m_lastLat = Double.NaN; // m_lock, last position in tile units
+    private double m_lastLon = Double.NaN; // m_lock
+    private double m_dirLat = 0;           // m_lock, unit vector of movement direction
+    private double m_dirLon = 0;           // m_lock
+
+    /**
+     * Constructor
+     * @param quad_size Size of prefetched tiles
+     * @param server LPIS server
+     * @param executor Executor running the downloads, can be shared with other tasks
+     * @param max_concurrency Maximal number of tiles downloaded at once
+     */
+    public LpisPrefetch (LatLonSize quad_size, LpisServer server, ExecutorService executor, int max_concurrency) {
         m_quadSize = quad_size;
         m_lpisServer = server;
+        m_executor = executor;
+        m_maxConcurrency = Math.max (1, max_concurrency);
     }
 
     public void schedulePrefetch (LatLon pos) {
         QuadCache.QuadIndex qi = QuadCache.QuadIndex.latLonToQuadIndex(m_quadSize, pos.lat(), pos.lon());
-        QuadCache.QuadIndex[] list = new QuadCache.QuadIndex[9];
-        int index = 0;
-        list[index++] = new QuadCache.QuadIndex (qi.iLat() - 1, qi.iLon() - 1);
-        list[index++] = new QuadCache.QuadIndex (qi.iLat() - 1, qi.iLon() + 1);
-        list[index++] = new QuadCache.QuadIndex (qi.iLat() + 1, qi.iLon() - 1);
-        list[index++] = new QuadCache.QuadIndex (qi.iLat() + 1, qi.iLon() + 1);
-        list[index++] = new QuadCache.QuadIndex (qi.iLat(), qi.iLon() - 1);
-        list[index++] = new QuadCache.QuadIndex (qi.iLat(), qi.iLon() + 1);
-        list[index++] = new QuadCache.QuadIndex (qi.iLat() - 1, qi.iLon());
-        list[index++] = new QuadCache.QuadIndex (qi.iLat() + 1, qi.iLon());
-        list[index++] = qi;
-        schedulePrefetchTiles (list);
-    }
+        double lat = (pos.lat() + 90) / m_quadSize.latSize();
+        double lon = (pos.lon() + 180) / m_quadSize.lonSize();
 
-    private void schedulePrefetchTiles (QuadCache.QuadIndex[] list) {
         synchronized (m_lock) {
+            updateDirection (lat, lon);
+
+            // drop queued tiles the mapper has left behind
+            PriorityQueue<PrefetchTile> queue = new PriorityQueue<> ();
+            for (PrefetchTile tile: m_queue) {
+                if (Math.abs(tile.m_qi.iLat() - qi.iLat()) > 1 || Math.abs(tile.m_qi.iLon() - qi.iLon()) > 1) {
+                    System.out.println ("prefetch: dropping left behind tile: " + tile.m_qi.toString());
+                    m_queuedTiles.remove (tile.m_qi);
+                }
+            }
+            m_queue.clear ();
 
-            PrefetchQueue <QuadCache.QuadIndex> new_queue = null;
+            // neighbourhood of the position and tiles two steps ahead
+            for (QuadCache.QuadIndex aqi: prefetchTiles (qi)) {
+                if (m_prefetchedTiles.contains(aqi) || m_runningTiles.contains(aqi))
+                    continue;
+                m_queuedTiles.add (aqi);
+            }
 
-            for (QuadCache.QuadIndex qi : list) {
+            // reprioritize
+            for (QuadCache.QuadIndex aqi: m_queuedTiles)
+                queue.add (new PrefetchTile (aqi, priority (aqi, lat, lon)));
+            m_queue = queue;
 
-                // already prefetched?
-                if (m_prefetchedTiles.contains(qi)) {
-                    System.out.println ("prefetch: already prefetched: " + qi.toString());
-                    continue;
-                }
+            dispatch ();
+        }
+    }
+
+    private void updateDirection (double lat, double lon) {
+        if (!Double.isNaN (m_lastLat)) {
+            double dlat = lat - m_lastLat;
+            double dlon = lon - m_lastLon;
+            double len = Math.sqrt (dlat * dlat + dlon * dlon);
+            // ignore clicks inside the same small area, keep previous direction
+            if (len > 0.1) {
+                m_dirLat = dlat / len;
+                m_dirLon = dlon / len;
+            }
+        }
+        m_lastLat = lat;
+        m_lastLon = lon;
+    }
 
-                // prefetch task is running, add to existing prefetch queue
-                if (m_prefetchQueue != null) {
-                    System.out.println ("prefetch: adding to running queue: " + qi.toString());
-                    m_prefetchQueue.add (qi);
+    private List<QuadCache.QuadIndex> prefetchTiles (QuadCache.QuadIndex qi) {
+        List<QuadCache.QuadIndex> list = new ArrayList<> (12);
+        for (long dlat = -2; dlat <= 2; dlat++) {
+            for (long dlon = -2; dlon <= 2; dlon++) {
+                if (Math.abs(dlat) <= 1 && Math.abs(dlon) <= 1) {
+                    list.add (new QuadCache.QuadIndex (qi.iLat() + dlat, qi.iLon() + dlon));
                     continue;
                 }
-
-                // no prefetch task running, prepare add to new queue
-                if (new_queue == null)
-                    new_queue = new PrefetchQueue<> ();
-                System.out.println ("prefetch: scheduling for new prefetch batch: " + qi.toString());
-                new_queue.add (qi);
+                double len = Math.sqrt (dlat * dlat + dlon * dlon);
+                if ((dlat * m_dirLat + dlon * m_dirLon) / len >= aheadCosine)
+                    list.add (new QuadCache.QuadIndex (qi.iLat() + dlat, qi.iLon() + dlon));
             }
+        }
+        return list;
+    }
+
+    private double priority (QuadCache.QuadIndex qi, double lat, double lon) {
+        double dlat = qi.iLat() + 0.5 - lat;
+        double dlon = qi.iLon() + 0.5 - lon;
+        double distance = Math.sqrt (dlat * dlat + dlon * dlon);
+        double ahead = distance > 0 ? (dlat * m_dirLat + dlon * m_dirLon) / distance : 0;
+        return distance - directionBias * ahead;
+    }
 
-            // launch prefetch task if there're tiles to prefetch
-            if (new_queue != null) {
-                m_prefetchQueue = new_queue;
-                m_prefetchExecutor.submit(new Runnable () {
-                    @Override
-                    public void run() {
-                        prefetchTask ();
-                    }
-                });
+    private void dispatch () {
+        while (m_runningTiles.size() < m_maxConcurrency && !m_queue.isEmpty()) {
+            final QuadCache.QuadIndex qi = m_queue.poll().m_qi;
+            m_queuedTiles.remove (qi);
+            if (m_prefetchedTiles.contains(qi)) {
+                System.out.println ("prefetch: queued tile already prefetched: " + qi.toString());
+                continue;
             }
+            m_runningTiles.add (qi);
+            m_executor.submit(new Runnable () {
+                @Override
+                public void run() {
+                    prefetchTask (qi);
+                }
+            });
         }
     }
 
-    private void prefetchTask () {
-
-        QuadCache.QuadIndex qi = null;
+    private void prefetchTask (QuadCache.QuadIndex qi) {
         boolean succeeded = false;
-
-        System.out.println ("prefetch: starting prefetch task");
-
-        while (true) {
-
+        try {
+            succeeded = downloadLpisTile (qi);
+        }
+        finally {
             synchronized (m_lock) {
-
-                // handle previously downloaded tile
-                if (qi != null) {
-                    m_prefetchQueue.remove (qi);
-                    if (succeeded) {
-                        m_prefetchedTiles.add (qi);
-                    }
-                }
-
-                // get a non-prefetched tile from queue
-                while (true) {
-                    if (m_prefetchQueue.isEmpty()) {
-                        System.out.println ("prefetch: queue drained, leaving prefetch task");
-                        m_prefetchQueue = null;
-                        return;
-                    }
-                    QuadCache.QuadIndex aqi = m_prefetchQueue.peek();
-                    if (m_prefetchedTiles.contains(aqi)) {
-                        System.out.println ("prefetch: queued tile already prefetched: " + aqi.toString());
-                        m_prefetchQueue.remove(aqi);
-                        continue;
-                    }
-                    qi = aqi;
-                    break;
+                m_runningTiles.remove (qi);
+                if (succeeded) {
+                    m_prefetchedTiles.add (qi);
                 }
+                dispatch ();
             }
-
-            succeeded = downloadLpisTile (qi);
         }
     }
 
@@ -146,8 +183,7 @@ public class LpisPrefetch {
         System.out.println ("prefetch: downloading tile: " + qi.toString());
 
         try {
-            BBox box = QuadCache.QuadIndex.quadIndexToBBox(m_quadSize, qi);
-            m_lpisServer.prefetchRecords(box);
+            m_lpisServer.prefetchRecords(qi);
         }
         catch (Exception e) {
             return false;
@@ -156,35 +192,18 @@ public class LpisPrefetch {
         return true;
     }
 
-    class PrefetchQueue<Element> {
-        private final ArrayList<Element> m_Queue = new ArrayList<>(9);
-
-        public boolean isEmpty () {
-            return m_Queue.isEmpty();
-        }
-
-        public Element peek () {
-            return m_Queue.get(m_Queue.size() - 1);
-        }
+    private static final class PrefetchTile implements Comparable<PrefetchTile> {
+        private final QuadCache.QuadIndex m_qi;
+        private final double m_priority;
 
-        public boolean remove (Element e) {
-            int index = m_Queue.indexOf (e);
-            if (index < 0) {
-                return false;
-            }
-            m_Queue.remove (index);
-            return true;
+        PrefetchTile (QuadCache.QuadIndex qi, double priority) {
+            m_qi = qi;
+            m_priority = priority;
         }
 
-        public void add (Element e) {
-            int index = m_Queue.indexOf (e);
-            if (index < 0) {
-                m_Queue.add (e);
-            }
-            else if (index != m_Queue.size() - 1) {
-                m_Queue.remove (index);
-                m_Queue.add (e);
-            }
+        @Override
+        public int compareTo (PrefetchTile other) {
+            return Double.compare (m_priority, other.m_priority);
         }
     }
 }
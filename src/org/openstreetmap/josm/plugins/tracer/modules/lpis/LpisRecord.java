@@ -18,25 +18,18 @@
 
 package org.openstreetmap.josm.plugins.tracer.modules.lpis;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.openstreetmap.josm.data.coor.ILatLon;
 import org.openstreetmap.josm.data.coor.LatLon;
 import org.openstreetmap.josm.plugins.tracer.TracerRecord;
 import org.openstreetmap.josm.plugins.tracer.TracerUtils;
 import static org.openstreetmap.josm.tools.I18n.tr;
-import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 
 /**
@@ -46,6 +39,10 @@ import org.xml.sax.SAXException;
 
 public final class LpisRecord extends TracerRecord {
 
+    private static final String featureElement = "LPIS_DPB_UCINNE";
+    private static final String idElement = "IdDiluPudnihoBloku";
+    private static final String usageElement = "kultura";
+
     private long     m_lpis_id;
     private String   m_usage;
     private Map <String, String> m_usageOsm;
@@ -145,16 +142,15 @@ public final class LpisRecord extends TracerRecord {
         }
     }
 
-    private ArrayList<LatLon> parseGeometry (String geometry) {
+    private static List<LatLon> parseGeometry (String geometry, krovak k) {
 
         ArrayList<LatLon> arrList = new ArrayList<>();
         LatLon prevCoor = null;
 
-        String[] coorVal = geometry.split(" ");
-        for (int i = 0; i < coorVal.length; i = i + 2) {
+        String[] coorVal = geometry.trim().split("\\s+");
+        for (int i = 0; i + 1 < coorVal.length; i = i + 2) {
             String x = coorVal[i];
             String y = coorVal[i+1];
-            krovak k = new krovak();
             LatLon ll = k.krovak2LatLon(x, y);
 
             // Sometimes, after rouding, two nodes could have the same LatLon coordinates
@@ -168,77 +164,106 @@ public final class LpisRecord extends TracerRecord {
     }
 
     /**
-    * Parse given XML string and fill variables with LPIS data
-    * There are two modes:
-    *   - basic - get LPIS ID and geometry
-    *   - extra - get type (landuse) of the element
-    *  @param action - basic or extra
-    *  @param xmlStr - data for parsing
-     * @throws javax.xml.parsers.ParserConfigurationException Parser Configuration Exception
-     * @throws org.xml.sax.SAXException Incorrect xml structure
-     * @throws java.io.IOException Input/Output issue
-     * @throws javax.xml.xpath.XPathExpressionException Wrong XPath Expression
-    *
-    */
-    public void parseXML (String xmlStr) throws ParserConfigurationException, SAXException, IOException, XPathExpressionException {
-
-        System.out.println("");
-        System.out.println("parseXML() - Start");
-
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder builder = factory.newDocumentBuilder();
-
-        Document doc = builder.parse(new ByteArrayInputStream(xmlStr.getBytes("UTF-8")));
-        doc.getDocumentElement().normalize();
-
-        XPath xPath =  XPathFactory.newInstance().newXPath();
-        init();
-//        String expID = "//*[name()='ms:LPIS_DPB_UCINNE'][1]/*[name()='ms:id']";
-        String expID = "//*[name()='ms:LPIS_DPB_UCINNE'][1]/*[name()='ms:IdDiluPudnihoBloku']";
-        String expOuter = "//*[name()='ms:LPIS_DPB_UCINNE'][1]//*[name()='gml:exterior']//*[name()='gml:posList']";
-        String expInner = "//*[name()='ms:LPIS_DPB_UCINNE'][1]//*[name()='gml:interior']//*[name()='gml:posList']";
-        String expUsage = "//*[name()='ms:LPIS_DPB_UCINNE'][1]/*[name()='ms:kultura']";
-
-        NodeList nodeList;
-
-        System.out.println("parseXML(basic) - expID: " + expID);
-        nodeList = (NodeList) xPath.compile(expID).evaluate(doc, XPathConstants.NODESET);
-        if (nodeList.getLength() > 0) {
-            m_lpis_id = Long.parseLong(nodeList.item(0).getFirstChild().getNodeValue());
-        } else {
-            return;
-        }
-
-        System.out.println("parseXML(basic) - m_lpis_id: " + m_lpis_id);
-
-        System.out.println("parseXML(basic) - expOuter: " + expOuter);
-        nodeList = (NodeList) xPath.compile(expOuter).evaluate(doc, XPathConstants.NODESET);
-        String outer = nodeList.item(0).getFirstChild().getNodeValue();
-        System.out.println("parseXML(basic) - outer: " + outer);
-        List<LatLon> way = parseGeometry(outer);
-        System.out.println("parseXML(basic) - outer list: " + way);
-        super.setOuter(way);
-
-        System.out.println("parseXML(basic) - expInner: " + expInner);
-        nodeList = (NodeList) xPath.compile(expInner).evaluate(doc, XPathConstants.NODESET);
-        for (int i = 0; i < nodeList.getLength(); i++) {
-            String inner = nodeList.item(i).getFirstChild().getNodeValue();
-            System.out.println("Inner("+i+": "+ inner);
-            super.addInner(parseGeometry(inner));
+     * Parse WFS GetFeature reply in a single pass and create LPIS records.
+     * The reply is streamed, no intermediate string or DOM is built.
+     * Only features with LPIS ID and outer geometry are returned.
+     * @param stream WFS reply stream
+     * @param adjlat Value for Latitude adjusting
+     * @param adjlon Value for Longitude adjusting
+     * @return List of LPIS records in document order
+     * @throws javax.xml.stream.XMLStreamException Incorrect xml structure
+     */
+    static List<LpisRecord> parseFeatures (InputStream stream, double adjlat, double adjlon) throws XMLStreamException {
+
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+        XMLStreamReader xr = factory.createXMLStreamReader(stream);
+        krovak k = new krovak();
+        List<LpisRecord> list = new ArrayList<> ();
+
+        try {
+            int depth = 0;
+            int feature_depth = -1;   // depth of current feature element, -1 outside features
+            int ring = 0;             // 1 in gml:exterior, 2 in gml:interior
+
+            long id = -1;
+            String usage = null;
+            List<LatLon> outer = null;
+            List<List<LatLon>> inners = new ArrayList<> ();
+
+            while (xr.hasNext()) {
+                int event = xr.next();
+
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = xr.getLocalName();
+
+                    if (feature_depth < 0) {
+                        if (name.equals(featureElement)) {
+                            feature_depth = depth;
+                            id = -1;
+                            usage = null;
+                            outer = null;
+                            inners = new ArrayList<> ();
+                        }
+                    }
+                    else if (depth == feature_depth + 1 && name.equals(idElement)) {
+                        id = Long.parseLong(xr.getElementText().trim());
+                        continue;
+                    }
+                    else if (depth == feature_depth + 1 && name.equals(usageElement)) {
+                        usage = xr.getElementText();
+                        continue;
+                    }
+                    else if (name.equals("exterior")) {
+                        ring = 1;
+                    }
+                    else if (name.equals("interior")) {
+                        ring = 2;
+                    }
+                    else if (name.equals("posList") && ring != 0) {
+                        String geometry = xr.getElementText();
+                        if (ring == 1 && outer == null)
+                            outer = parseGeometry(geometry, k);
+                        else if (ring == 2)
+                            inners.add(parseGeometry(geometry, k));
+                        continue;
+                    }
+                    depth++;
+                }
+                else if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                    String name = xr.getLocalName();
+                    if (name.equals("exterior") || name.equals("interior")) {
+                        ring = 0;
+                    }
+                    else if (depth == feature_depth && name.equals(featureElement)) {
+                        feature_depth = -1;
+                        if (id < 0 || outer == null)
+                            continue;
+
+                        LpisRecord lpis = new LpisRecord (adjlat, adjlon);
+                        lpis.m_lpis_id = id;
+                        lpis.setOuter(outer);
+                        for (List<LatLon> inner: inners)
+                            lpis.addInner(inner);
+                        if (usage != null && !usage.isEmpty()) {
+                            lpis.m_usage = usage;
+                            lpis.mapToOsm();
+                        }
+                        list.add(lpis);
+                    }
+                }
+            }
         }
-        List<List<LatLon>> inner_ways = super.getInners();
-        for (int i = 0; i < inner_ways.size(); i++) {
-            System.out.println("parseXML(basic) - Inner("+i+"): " + inner_ways.get(i));
+        finally {
+            xr.close();
         }
 
-        nodeList = (NodeList) xPath.compile(expUsage).evaluate(doc, XPathConstants.NODESET);
-        if (nodeList != null && nodeList.getLength() > 0 && nodeList.item(0).hasChildNodes()) {
-            m_usage = nodeList.item(0).getFirstChild().getNodeValue();
-            mapToOsm();
-        }
-        System.out.println("parseXML(extra) - m_usage: " + m_usage);
-
-        System.out.println("parseXML() - End");
+        System.out.println("parseFeatures() - records: " + Integer.toString(list.size()));
+        return list;
     }
 
     /**
@@ -270,61 +295,36 @@ public final class LpisRecord extends TracerRecord {
         return m_lpis_id;
     }
 
+    @Override
+    public long getEstimatedMemorySize() {
+        return super.getEstimatedMemorySize() + 40 + 2 * m_usage.length() + 64 * m_usageOsm.size();
+    }
+
     @Override
     public boolean hasData() {
         return m_lpis_id > 0 && super.hasOuter();
     }
 
-    static List<LpisRecord> parseBasicXML(String content, double adjlat, double adjlon) throws ParserConfigurationException, SAXException, IOException, XPathExpressionException {
-        DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder docBuilder = docBuilderFactory.newDocumentBuilder();
-        Document doc = docBuilder.parse (new ByteArrayInputStream(content.getBytes("utf-8")));
-        doc.getDocumentElement().normalize();
-
-        XPath xPath =  XPathFactory.newInstance().newXPath();
-//        String expID = "//*[name()='ms:LPIS_DPB_UCINNE']/*[name()='ms:id']";
-        String expID = "//*[name()='ms:LPIS_DPB_UCINNE']/*[name()='ms:IdDiluPudnihoBloku']";
-
-        System.out.println("parseXML(basic) - expID: " + expID);
-        NodeList expids = (NodeList) xPath.compile(expID).evaluate(doc, XPathConstants.NODESET);
-
-        List<LpisRecord> list = new ArrayList<> (expids.getLength());
-
-        for (int i = 0; i < expids.getLength(); i++) {
-            final long exp_id = Long.parseLong(expids.item(i).getFirstChild().getNodeValue());
-
-            LpisRecord lpis = new LpisRecord (adjlat, adjlon);
-            lpis.m_lpis_id = exp_id;
-
-            String expOuter = "//*[name()='ms:LPIS_DPB_UCINNE' and @*='LPIS_DPB_UCINNE." + Long.toString(exp_id) + "']//*[name()='gml:exterior']//*[name()='gml:posList']";
-            NodeList outernl = (NodeList) xPath.compile(expOuter).evaluate(doc, XPathConstants.NODESET);
-            if (outernl.getLength() > 0) {
-                String outer = outernl.item(0).getFirstChild().getNodeValue();
-                List<LatLon> way = lpis.parseGeometry(outer);
-                lpis.setOuter(way);
-            } else {
-                continue;
-            }
-
-            String expInner = "//*[name()='ms:LPIS_DPB_UCINNE' and @*='LPIS_DPB_UCINNE." + Long.toString(exp_id) + "']//*[name()='gml:interior']//*[name()='gml:posList']";
-            NodeList innersnl = (NodeList) xPath.compile(expInner).evaluate(doc, XPathConstants.NODESET);
-
-            for (int j = 0; j < innersnl.getLength(); j++) {
-                String inner = innersnl.item(j).getFirstChild().getNodeValue();
-                lpis.addInner(lpis.parseGeometry(inner));
-            }
-
-            String expUsage = "//*[name()='ms:LPIS_DPB_UCINNE'] and @*='LPIS_DPB_UCINNE." + Long.toString(exp_id) + "']/*[name()='ms:kultura']";
-            NodeList usagenl = (NodeList) xPath.compile(expUsage).evaluate(doc, XPathConstants.NODESET);
-            if (usagenl != null && usagenl.getLength() > 0 && usagenl.item(0).hasChildNodes()) {
-                lpis.m_usage = usagenl.item(0).getFirstChild().getNodeValue();
-                lpis.mapToOsm();
-            }
-
-            list.add (lpis);
-        }
-
-        return list;
+    /**
+     * Creates record from data loaded from {@link LpisTileStore}.
+     * Stored geometry is already adjusted, so no further adjustment is applied.
+     * @param id LPIS id
+     * @param usage LPIS usage
+     * @param outer Outer way
+     * @param inners Inner ways
+     * @return LPIS record
+     */
+    static LpisRecord fromStoredData(long id, String usage, List<LatLon> outer, List<List<LatLon>> inners) {
+        LpisRecord lpis = new LpisRecord (0.0, 0.0);
+        lpis.m_lpis_id = id;
+        lpis.setOuter(outer);
+        for (List<LatLon> inner: inners)
+            lpis.addInner(inner);
+        lpis.m_usage = usage;
+        if (!usage.isEmpty())
+            lpis.mapToOsm();
+        return lpis;
     }
 
+
 }
@@ -19,23 +19,32 @@
 
 package org.openstreetmap.josm.plugins.tracer.modules.lpis;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPathExpressionException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.xml.stream.XMLStreamException;
+import org.openstreetmap.josm.data.Bounds;
 import org.openstreetmap.josm.data.coor.LatLon;
 import org.openstreetmap.josm.data.osm.BBox;
+import org.openstreetmap.josm.plugins.tracer.QuadCache;
 import org.openstreetmap.josm.plugins.tracer.TracerUtils;
 import org.openstreetmap.josm.plugins.tracer.connectways.LatLonSize;
-import org.xml.sax.SAXException;
+import org.openstreetmap.josm.spi.preferences.Config;
 
 public class LpisServer {
 
     private final String m_url;
+    private final LatLonSize m_tileSize;
     private final LpisCache m_lpisCache;
+    private final LpisTileStore m_tileStore;
+    // tiles whose disk store was already consulted, don't read them again on cache misses
+    private final Set<QuadCache.QuadIndex> m_storedTilesChecked = ConcurrentHashMap.newKeySet();
 
     // LpisRecords have fixed constant coord adjustment
     private static final double adjustLat = 0.0;
@@ -43,27 +52,22 @@ public class LpisServer {
 
     public LpisServer(String url, LatLonSize cache_tile_size) {
         m_url = url;
+        m_tileSize = cache_tile_size;
         m_lpisCache = new LpisCache (cache_tile_size);
+        m_tileStore = LpisTileStore.open (url, cache_tile_size);
     }
 
     /**
-     * Call Trace server.
+     * Call WFS server and parse returned features.
      * @param urlString Input parameters.
-     * @return Result text.
+     * @return List of parsed LPIS records.
      * @throws java.net.MalformedURLException Wrong url
-     * @throws java.io.UnsupportedEncodingException Unsuported encoding
      * @throws java.io.IOException Input/Output issue
+     * @throws javax.xml.stream.XMLStreamException Incorrect xml structure
      */
-    private String callServer(String urlString) throws MalformedURLException, UnsupportedEncodingException, IOException {
-        try (BufferedReader reader = TracerUtils.openUrlStream (urlString, "UTF-8")) {
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (sb.length() > 0)
-                    sb.append(" ");
-                sb.append(line);
-            }
-            return sb.toString();
+    private List<LpisRecord> callServer(String urlString) throws MalformedURLException, IOException, XMLStreamException {
+        try (InputStream stream = TracerUtils.openHttpStream (urlString, TracerUtils.getModuleTimeout("lpis"))) {
+            return LpisRecord.parseFeatures(stream, adjustLat, adjustLon);
         }
     }
 
@@ -71,18 +75,24 @@ public class LpisServer {
      * Get element ID and geometry of the land on the position.
      * @param pos Position of the land.
      * @return Land ID and geometry.
-     * @throws java.io.UnsupportedEncodingException Unsuported encoding
-     * @throws javax.xml.parsers.ParserConfigurationException Parser Configuration Exception
-     * @throws org.xml.sax.SAXException Incorrect xml structure
-     * @throws javax.xml.xpath.XPathExpressionException Wrong XPath Expression
+     * @throws java.io.IOException Input/Output issue
+     * @throws javax.xml.stream.XMLStreamException Incorrect xml structure
      */
-    public LpisRecord getRecord (LatLon pos) throws UnsupportedEncodingException, IOException, ParserConfigurationException, SAXException, XPathExpressionException {
+    public LpisRecord getRecord (LatLon pos) throws IOException, XMLStreamException {
 
         // cached?
         LpisRecord rec = m_lpisCache.get (pos);
         if (rec != null)
             return rec;
 
+        // stored on disk?
+        QuadCache.QuadIndex qi = QuadCache.QuadIndex.latLonToQuadIndex(m_tileSize, pos.lat(), pos.lon());
+        if (m_storedTilesChecked.add (qi) && loadStoredTile (qi) != null) {
+            rec = m_lpisCache.get (pos);
+            if (rec != null)
+                return rec;
+        }
+
         krovak k = new krovak();
         xyCoor xy = k.LatLon2krovak(pos);
 
@@ -92,10 +102,8 @@ public class LpisServer {
         String request = m_url + "?VERSION=1.1.0&SERVICE=WFS&REQUEST=GetFeature&TYPENAME=LPIS_DPB_UCINNE&bbox="+bbox+"&SRSNAME=EPSG:102067";
 
         System.out.println("Request: " + request);
-        String content = callServer(request);
-        System.out.println("Reply: " + content);
-        LpisRecord lpis = new LpisRecord(adjustLat, adjustLon);
-        lpis.parseXML(content);
+        List<LpisRecord> list = callServer(request);
+        LpisRecord lpis = list.isEmpty() ? new LpisRecord(adjustLat, adjustLon) : list.get(0);
 
         // cache record
         if (lpis.hasData()) {
@@ -105,7 +113,52 @@ public class LpisServer {
         return lpis;
     }
 
-    void prefetchRecords (BBox bbox) throws UnsupportedEncodingException, IOException, ParserConfigurationException, SAXException, XPathExpressionException {
+    /**
+     * Get all lands in given area, the area is downloaded tile by tile.
+     * @param bounds Area of lands
+     * @param max_tiles Maximal number of downloaded tiles
+     * @return List of lands, each land is listed once.
+     * @throws java.io.IOException Input/Output issue
+     * @throws javax.xml.stream.XMLStreamException Incorrect xml structure
+     */
+    public List<LpisRecord> getRecords (Bounds bounds, int max_tiles) throws IOException, XMLStreamException {
+        Map<Long, LpisRecord> records = new LinkedHashMap<> ();
+        for (Bounds tile: TracerUtils.splitBounds(bounds, m_tileSize, max_tiles)) {
+            LatLon center = tile.getCenter();
+            QuadCache.QuadIndex qi = QuadCache.QuadIndex.latLonToQuadIndex(m_tileSize, center.lat(), center.lon());
+            for (LpisRecord lpis: prefetchRecords (qi))
+                records.put(lpis.getLpisID(), lpis);
+        }
+        return new ArrayList<> (records.values());
+    }
+
+    /**
+     * Loads tile from disk store into the cache.
+     * @param qi Tile index
+     * @return Records of the tile or null if the tile was not available in disk store
+     */
+    private List<LpisRecord> loadStoredTile (QuadCache.QuadIndex qi) {
+        if (m_tileStore == null)
+            return null;
+        List<LpisRecord> list = m_tileStore.load (qi);
+        if (list == null)
+            return null;
+        for (LpisRecord lpis: list)
+            m_lpisCache.add(lpis);
+        return list;
+    }
+
+    List<LpisRecord> prefetchRecords (QuadCache.QuadIndex qi) throws IOException, XMLStreamException {
+
+        // stored on disk?
+        m_storedTilesChecked.add (qi);
+        List<LpisRecord> stored = loadStoredTile (qi);
+        if (stored != null) {
+            System.out.println("LpisCache: prefetched from disk store: " + qi.toString());
+            return stored;
+        }
+
+        BBox bbox = QuadCache.QuadIndex.quadIndexToBBox(m_tileSize, qi);
         krovak k = new krovak();
 
         LatLon a = bbox.getTopLeft();
@@ -119,10 +172,10 @@ public class LpisServer {
         String request = m_url + "?VERSION=1.1.0&SERVICE=WFS&REQUEST=GetFeature&TYPENAME=LPIS_DPB_UCINNE&bbox="+wfsbox+"&SRSNAME=EPSG:102067";
 
         System.out.println("Request: " + request);
-        String content = callServer(request);
-        System.out.println("Reply: " + content);
+        List<LpisRecord> list = callServer(request);
+        List<LpisRecord> tile_records = new ArrayList<> (list.size());
 
-        List<LpisRecord> list = LpisRecord.parseBasicXML (content, adjustLat, adjustLon);
+        List<LpisRecord> incomplete = new ArrayList<> ();
 
         long prefetched = 0;
         long existing = 0;
@@ -134,24 +187,70 @@ public class LpisServer {
                 continue;
 
             // ignore records already in cache (avoids unnecessary downloads of extra data)
-            if (m_lpisCache.containsLpisID(lpis.getLpisID())) {
+            LpisRecord cached = m_lpisCache.getByLpisID(lpis.getLpisID());
+            if (cached != null) {
+                tile_records.add(cached);
                 ++existing;
                 continue;
             }
 
-            request = m_url + "?VERSION=1.1.0&SERVICE=WFS&REQUEST=GetFeature&TYPENAME=LPIS_DPB_UCINNE&&featureID=LPIS_DPB_UCINNE."+lpis.getLpisID()+"&SRSNAME=EPSG:102067";
-            System.out.println("Request: " + request);
-            content = callServer(request);
-            System.out.println("Reply: " + content);
-            lpis.parseXML(content);
-
-            // cache record
-            if (lpis.hasData()) {
+            // bbox reply already contains complete record?
+            if (!lpis.getUsage().isEmpty()) {
                 m_lpisCache.add(lpis);
+                tile_records.add(lpis);
                 ++prefetched;
+                continue;
+            }
+
+            incomplete.add(lpis);
+        }
+
+        // download remaining records in batches
+        boolean complete = true;
+        int batch_size = Math.max(1, Config.getPref().getInt("tracer.lpis.feature_batch_size", 50));
+        for (int i = 0; i < incomplete.size(); i += batch_size) {
+            List<LpisRecord> batch = incomplete.subList(i, Math.min(i + batch_size, incomplete.size()));
+            int received = 0;
+            for (LpisRecord lpis: downloadFeatures(batch)) {
+                // cache record
+                if (lpis.hasData()) {
+                    m_lpisCache.add(lpis);
+                    tile_records.add(lpis);
+                    ++prefetched;
+                    ++received;
+                }
             }
+            if (received < batch.size())
+                complete = false;
+        }
+
+        // persist complete tile only, a partial tile would be served from disk as complete
+        if (m_tileStore != null && complete)
+            m_tileStore.store(qi, tile_records);
+        else if (!complete)
+            System.out.println("LpisCache: incomplete tile not stored: " + qi.toString());
+
+        System.out.println("LpisCache: prefetched: " + Long.toString(prefetched) + ", existing: " + Long.toString (existing) + ", batched: " + Integer.toString(incomplete.size()) + " bbox: " + bbox.toString());
+        return tile_records;
+    }
+
+    /**
+     * Download complete records by their LPIS ids using a single GetFeature request.
+     * @param records Records to download
+     * @return Downloaded records
+     * @throws java.io.IOException Input/Output issue
+     * @throws javax.xml.stream.XMLStreamException Incorrect xml structure
+     */
+    private List<LpisRecord> downloadFeatures (List<LpisRecord> records) throws IOException, XMLStreamException {
+        StringBuilder ids = new StringBuilder();
+        for (LpisRecord lpis: records) {
+            if (ids.length() > 0)
+                ids.append(",");
+            ids.append("LPIS_DPB_UCINNE.").append(lpis.getLpisID());
         }
 
-        System.out.println("LpisCache: prefetched: " + Long.toString(prefetched) + ", existing: " + Long.toString (existing) + " bbox: " + bbox.toString());
+        String request = m_url + "?VERSION=1.1.0&SERVICE=WFS&REQUEST=GetFeature&TYPENAME=LPIS_DPB_UCINNE&featureID="+ids.toString()+"&SRSNAME=EPSG:102067";
+        System.out.println("Request: " + request);
+        return callServer(request);
     }
 }
@@ -0,0 +1,348 @@
+/**
+ *  Tracer - plugin for JOSM
+ *  Jan Bilak, Marian Kyral, Martin Svec
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.openstreetmap.josm.plugins.tracer.modules.lpis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.plugins.tracer.QuadCache;
+import org.openstreetmap.josm.plugins.tracer.connectways.LatLonSize;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+/**
+ * Persistent store of prefetched LPIS tiles. Each tile is kept in its own
+ * binary file, tile timestamps and sizes are kept in a memory-mapped index
+ * of fixed-size slots. Tiles older than configured TTL are ignored and
+ * the oldest tiles are dropped when the size cap is exceeded.
+ *
+ * There's a single store per process, the index remembers tile size and
+ * server url of the stored tiles and the store is reset when they change.
+ */
+final class LpisTileStore {
+
+    private static final int indexMagic = 0x54524c49; // "TRLI"
+    private static final int tileMagic = 0x54524c54;  // "TRLT"
+    private static final int formatVersion = 2;
+
+    private static final int headerSize = 64;
+    private static final int slotSize = 32;
+    private static final int slotCount = 8192;
+
+    // slot layout
+    private static final int slotLat = 0;
+    private static final int slotLon = 8;
+    private static final int slotTime = 16;
+    private static final int slotBytes = 24;
+    private static final int slotUsed = 28;
+
+    private static final double coorScale = 1e7;
+
+    // the index is mapped only once, several views would overwrite each other's slots
+    private static LpisTileStore m_instance;
+    private static boolean m_openFailed;
+
+    private final File m_dir;
+    private final long m_ttlMillis;
+    private final long m_maxBytes;
+    private final MappedByteBuffer m_index;
+
+    private final Map<QuadCache.QuadIndex, Integer> m_slots = new HashMap<> ();
+    private final Deque<Integer> m_freeSlots = new ArrayDeque<> ();
+    private long m_bytes;
+
+    private LpisTileStore (File dir, MappedByteBuffer index, long ttl_millis, long max_bytes) {
+        m_dir = dir;
+        m_index = index;
+        m_ttlMillis = ttl_millis;
+        m_maxBytes = max_bytes;
+        m_bytes = 0;
+    }
+
+    /**
+     * Opens the tile store in JOSM cache directory.
+     * @param url Url of LPIS server, store is reset if it differs from the stored one
+     * @param tile_size Size of cached tiles, store is reset if it differs from the stored one
+     * @return Tile store or null if the store is disabled or cannot be opened
+     */
+    static synchronized LpisTileStore open (String url, LatLonSize tile_size) {
+        if (!Config.getPref().getBoolean("tracer.lpis.disk_cache", true))
+            return null;
+
+        if (m_instance == null && !m_openFailed) {
+            m_instance = create ();
+            m_openFailed = m_instance == null;
+        }
+        if (m_instance != null)
+            m_instance.loadIndex (url, tile_size);
+        return m_instance;
+    }
+
+    private static LpisTileStore create () {
+        long ttl_millis = (long)Config.getPref().getInt("tracer.lpis.disk_cache_ttl_days", 30) * 24 * 3600 * 1000;
+        long max_bytes = (long)Config.getPref().getInt("tracer.lpis.disk_cache_max_mbytes", 256) * 1024 * 1024;
+
+        try {
+            File dir = new File (Config.getDirs().getCacheDirectory(true), "tracer" + File.separator + "lpis");
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new IOException ("Cannot create directory " + dir.getPath());
+
+            MappedByteBuffer index;
+            try (RandomAccessFile raf = new RandomAccessFile (new File (dir, "index.bin"), "rw");
+                 FileChannel channel = raf.getChannel()) {
+                index = channel.map (FileChannel.MapMode.READ_WRITE, 0, headerSize + (long)slotCount * slotSize);
+            }
+
+            return new LpisTileStore (dir, index, ttl_millis, max_bytes);
+        }
+        catch (IOException e) {
+            System.out.println ("LpisTileStore: disk cache not available: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private synchronized void loadIndex (String url, LatLonSize tile_size) {
+        long url_hash = urlHash (url);
+        boolean valid = m_index.getInt(0) == indexMagic &&
+            m_index.getInt(4) == formatVersion &&
+            m_index.getInt(8) == slotCount &&
+            m_index.getDouble(16) == tile_size.latSize() &&
+            m_index.getDouble(24) == tile_size.lonSize() &&
+            m_index.getLong(32) == url_hash;
+
+        m_slots.clear();
+        m_freeSlots.clear();
+        m_bytes = 0;
+
+        if (!valid) {
+            System.out.println ("LpisTileStore: initializing new index");
+            for (int slot = 0; slot < slotCount; slot++)
+                m_index.putInt(slotOffset (slot) + slotUsed, 0);
+            m_index.putInt(0, indexMagic);
+            m_index.putInt(4, formatVersion);
+            m_index.putInt(8, slotCount);
+            m_index.putDouble(16, tile_size.latSize());
+            m_index.putDouble(24, tile_size.lonSize());
+            m_index.putLong(32, url_hash);
+            deleteTileFiles ();
+        }
+
+        for (int slot = 0; slot < slotCount; slot++) {
+            int offset = slotOffset (slot);
+            if (m_index.getInt(offset + slotUsed) == 0) {
+                m_freeSlots.add(slot);
+                continue;
+            }
+            QuadCache.QuadIndex qi = new QuadCache.QuadIndex (m_index.getLong(offset + slotLat), m_index.getLong(offset + slotLon));
+            m_slots.put(qi, slot);
+            m_bytes += m_index.getInt(offset + slotBytes);
+        }
+
+        System.out.println ("LpisTileStore: tiles: " + Integer.toString(m_slots.size()) + ", bytes: " + Long.toString(m_bytes));
+    }
+
+    /**
+     * Loads stored records of the tile.
+     * @param qi Tile index
+     * @return List of records or null if the tile is not stored or expired
+     */
+    synchronized List<LpisRecord> load (QuadCache.QuadIndex qi) {
+        Integer slot = m_slots.get(qi);
+        if (slot == null)
+            return null;
+
+        long time = m_index.getLong(slotOffset (slot) + slotTime);
+        if (m_ttlMillis > 0 && System.currentTimeMillis() - time > m_ttlMillis) {
+            System.out.println ("LpisTileStore: expired tile: " + qi.toString());
+            removeTile (qi, slot);
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream (new BufferedInputStream (new FileInputStream (tileFile (qi))))) {
+            if (in.readInt() != tileMagic || in.readInt() != formatVersion)
+                throw new IOException ("Invalid tile file");
+
+            int count = in.readInt();
+            List<LpisRecord> list = new ArrayList<> (count);
+            for (int i = 0; i < count; i++) {
+                long id = in.readLong();
+                String usage = in.readUTF();
+                List<LatLon> outer = readWay (in);
+                int inners_count = in.readInt();
+                List<List<LatLon>> inners = new ArrayList<> (inners_count);
+                for (int j = 0; j < inners_count; j++)
+                    inners.add(readWay (in));
+                list.add(LpisRecord.fromStoredData (id, usage, outer, inners));
+            }
+            System.out.println ("LpisTileStore: loaded tile: " + qi.toString() + ", records: " + Integer.toString(count));
+            return list;
+        }
+        catch (IOException | RuntimeException e) {
+            System.out.println ("LpisTileStore: cannot read tile " + qi.toString() + ": " + e.getMessage());
+            removeTile (qi, slot);
+            return null;
+        }
+    }
+
+    /**
+     * Stores records of the tile, replaces previously stored tile.
+     * @param qi Tile index
+     * @param records Complete list of records of the tile
+     */
+    synchronized void store (QuadCache.QuadIndex qi, List<LpisRecord> records) {
+        Integer old_slot = m_slots.get(qi);
+        if (old_slot != null)
+            removeTile (qi, old_slot);
+
+        File file = tileFile (qi);
+        File tmp = new File (m_dir, file.getName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream (new BufferedOutputStream (new FileOutputStream (tmp)))) {
+                out.writeInt(tileMagic);
+                out.writeInt(formatVersion);
+                out.writeInt(records.size());
+                for (LpisRecord lpis: records) {
+                    out.writeLong(lpis.getLpisID());
+                    out.writeUTF(lpis.getUsage());
+                    writeWay (out, lpis.getOuter());
+                    List<List<LatLon>> inners = lpis.getInners();
+                    out.writeInt(inners.size());
+                    for (List<LatLon> inner: inners)
+                        writeWay (out, inner);
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException e) {
+            System.out.println ("LpisTileStore: cannot write tile " + qi.toString() + ": " + e.getMessage());
+            tmp.delete();
+            return;
+        }
+
+        if (m_freeSlots.isEmpty())
+            removeOldestTile ();
+
+        int slot = m_freeSlots.poll();
+        int offset = slotOffset (slot);
+        int bytes = (int)file.length();
+        m_index.putLong(offset + slotLat, qi.iLat());
+        m_index.putLong(offset + slotLon, qi.iLon());
+        m_index.putLong(offset + slotTime, System.currentTimeMillis());
+        m_index.putInt(offset + slotBytes, bytes);
+        m_index.putInt(offset + slotUsed, 1);
+        m_slots.put(qi, slot);
+        m_bytes += bytes;
+
+        while (m_maxBytes > 0 && m_bytes > m_maxBytes && m_slots.size() > 1)
+            removeOldestTile ();
+    }
+
+    private void removeOldestTile () {
+        QuadCache.QuadIndex oldest = null;
+        long oldest_time = Long.MAX_VALUE;
+        for (Map.Entry<QuadCache.QuadIndex, Integer> entry: m_slots.entrySet()) {
+            long time = m_index.getLong(slotOffset (entry.getValue()) + slotTime);
+            if (time < oldest_time) {
+                oldest_time = time;
+                oldest = entry.getKey();
+            }
+        }
+        if (oldest != null)
+            removeTile (oldest, m_slots.get(oldest));
+    }
+
+    private void removeTile (QuadCache.QuadIndex qi, int slot) {
+        int offset = slotOffset (slot);
+        m_bytes -= m_index.getInt(offset + slotBytes);
+        m_index.putInt(offset + slotUsed, 0);
+        m_slots.remove(qi);
+        m_freeSlots.add(slot);
+        tileFile (qi).delete();
+    }
+
+    private void deleteTileFiles () {
+        File[] files = m_dir.listFiles();
+        if (files == null)
+            return;
+        for (File file: files) {
+            if (file.getName().startsWith("tile_"))
+                file.delete();
+        }
+    }
+
+    private static long urlHash (String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++)
+                hash = (hash << 8) | (digest[i] & 0xff);
+            return hash;
+        }
+        catch (NoSuchAlgorithmException e) {
+            return url.hashCode();
+        }
+    }
+
+    private File tileFile (QuadCache.QuadIndex qi) {
+        return new File (m_dir, "tile_" + Long.toString(qi.iLat()) + "_" + Long.toString(qi.iLon()) + ".bin");
+    }
+
+    private static int slotOffset (int slot) {
+        return headerSize + slot * slotSize;
+    }
+
+    private static void writeWay (DataOutputStream out, List<LatLon> way) throws IOException {
+        out.writeInt(way.size());
+        for (LatLon ll: way) {
+            out.writeInt((int)Math.round(ll.lat() * coorScale));
+            out.writeInt((int)Math.round(ll.lon() * coorScale));
+        }
+    }
+
+    private static List<LatLon> readWay (DataInputStream in) throws IOException {
+        int size = in.readInt();
+        List<LatLon> way = new ArrayList<> (size);
+        for (int i = 0; i < size; i++) {
+            double lat = in.readInt() / coorScale;
+            double lon = in.readInt() / coorScale;
+            way.add(new LatLon (lat, lon));
+        }
+        return way;
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ *  Tracer - plugin for JOSM (RUIAN support)
+ *  Jan Bilak, Marian Kyral, Martin Svec
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.openstreetmap.josm.plugins.tracer.modules.ruian;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.plugins.tracer.ISpatialCache;
+import org.openstreetmap.josm.plugins.tracer.RTreeCache;
+import org.openstreetmap.josm.plugins.tracer.TracerRecord;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+/**
+ * Cache of downloaded RUIAN records, keyed by {@link #recordKey} and indexed by
+ * record footprint. Records expire after configured TTL, the cache is
+ * bounded by number of records, least recently used records are evicted first.
+ * @param <T> Type of cached records
+ */
+public abstract class RuianCache<T extends TracerRecord> {
+    private final String m_name;
+    private final Object m_lock;
+    private final LinkedHashMap<Object, CachedRecord<T>> m_records; // access ordered, eldest is least recently used
+    private final ISpatialCache<T> m_cache;
+
+    private final long m_ttlMillis;
+    private final int m_maxRecords;
+
+    private long m_hits;
+    private long m_misses;
+
+    /**
+     * Constructor
+     * @param module Module preference prefix, e.g. "ruian"
+     */
+    public RuianCache (String module) {
+        m_name = module;
+        m_lock = new Object ();
+        m_records = new LinkedHashMap<> (16, 0.75f, true);
+        m_cache = new RTreeCache<> ();
+
+        // zero or negative value means unlimited
+        m_ttlMillis = (long)Config.getPref().getInt("tracer." + module + ".cache_ttl_minutes", 30) * 60 * 1000;
+        m_maxRecords = Config.getPref().getInt("tracer." + module + ".cache_max_records", 5000);
+    }
+
+    /**
+     * Returns unique key of the record.
+     * @param record Record with data
+     * @return Key of the record
+     */
+    protected abstract Object recordKey (T record);
+
+    public boolean add (T record) {
+        if (!record.hasData())
+            return false;
+
+        synchronized (m_lock) {
+            Object key = recordKey (record);
+            CachedRecord<T> old = m_records.remove(key);
+            if (old != null)
+                m_cache.remove(old.m_record);
+
+            m_records.put(key, new CachedRecord<> (record, System.currentTimeMillis()));
+            m_cache.add(record);
+            evict ();
+            return true;
+        }
+    }
+
+    public T get (LatLon latlon) {
+        synchronized (m_lock) {
+            List<T> list = m_cache.search(latlon);
+            if (list != null && list.size() == 1) {
+                T record = list.get(0);
+                Object key = recordKey (record);
+                CachedRecord<T> cached = m_records.get(key); // mark as recently used
+                if (!expired (cached)) {
+                    ++m_hits;
+                    System.out.println ("RuianCache(" + m_name + "): hit, " + statistics ());
+                    return record;
+                }
+                System.out.println ("RuianCache(" + m_name + "): expired record");
+                m_records.remove(key);
+                m_cache.remove(record);
+            }
+            else if (list != null && list.size() > 1) {
+                // records changed on server, let the server decide
+                System.out.println("RuianCache(" + m_name + "): OVERLAPPING OBJECTS IN CACHE!");
+            }
+            ++m_misses;
+            System.out.println ("RuianCache(" + m_name + "): miss, " + statistics ());
+            return null;
+        }
+    }
+
+    public void clear () {
+        synchronized (m_lock) {
+            for (CachedRecord<T> cached: m_records.values())
+                m_cache.remove(cached.m_record);
+            m_records.clear();
+        }
+    }
+
+    public long getHits () {
+        synchronized (m_lock) {
+            return m_hits;
+        }
+    }
+
+    public long getMisses () {
+        synchronized (m_lock) {
+            return m_misses;
+        }
+    }
+
+    public int getRecordCount () {
+        synchronized (m_lock) {
+            return m_records.size();
+        }
+    }
+
+    private boolean expired (CachedRecord<T> cached) {
+        return m_ttlMillis > 0 && System.currentTimeMillis() - cached.m_time > m_ttlMillis;
+    }
+
+    private void evict () {
+        // never evict the most recently added record
+        Iterator<Map.Entry<Object, CachedRecord<T>>> it = m_records.entrySet().iterator();
+        while (m_records.size() > 1) {
+            CachedRecord<T> cached = it.next().getValue();
+            if (!expired (cached) && (m_maxRecords <= 0 || m_records.size() <= m_maxRecords))
+                break;
+            it.remove();
+            m_cache.remove(cached.m_record);
+        }
+    }
+
+    private String statistics () {
+        return "records: " + Integer.toString(m_records.size()) +
+            ", hits: " + Long.toString(m_hits) +
+            ", misses: " + Long.toString(m_misses);
+    }
+
+    private static final class CachedRecord<T> {
+        private final T m_record;
+        private final long m_time;
+
+        CachedRecord (T record, long time) {
+            m_record = record;
+            m_time = time;
+        }
+    }
+}
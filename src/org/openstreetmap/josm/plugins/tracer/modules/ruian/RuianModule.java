@@ -19,23 +19,71 @@
 package org.openstreetmap.josm.plugins.tracer.modules.ruian;
 
 import java.awt.Cursor;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.openstreetmap.josm.data.Bounds;
 import org.openstreetmap.josm.data.coor.LatLon;
 import org.openstreetmap.josm.plugins.tracer.modules.building.BuildingTracerModule;
+import org.openstreetmap.josm.plugins.tracer.IBatchTracerModule;
+import org.openstreetmap.josm.plugins.tracer.TilePrefetch;
 import org.openstreetmap.josm.plugins.tracer.TracerPreferences;
 import org.openstreetmap.josm.plugins.tracer.TracerRecord;
+import org.openstreetmap.josm.plugins.tracer.TracerUtils;
+import org.openstreetmap.josm.plugins.tracer.connectways.LatLonSize;
+import org.openstreetmap.josm.spi.preferences.Config;
 
 import static org.openstreetmap.josm.tools.I18n.*;
 import org.openstreetmap.josm.tools.ImageProvider;
 
-public final class RuianModule extends BuildingTracerModule {
+public final class RuianModule extends BuildingTracerModule implements IBatchTracerModule {
 
     protected boolean cancel;
     private boolean moduleEnabled;
 
     private final String ruianUrl = "http://josm.poloha.net";
+    private final RuianServer m_ruianServer = new RuianServer ();
+
+    private static final boolean m_prefetchEnabled;
+    private static final ExecutorService m_prefetchExecutor;
+    private static final int m_prefetchThreads;
+
+    static {
+        m_prefetchEnabled = Config.getPref().getBoolean("tracer.ruian.prefetch", true);
+        m_prefetchThreads = Math.min(Math.max(Config.getPref().getInt("tracer.ruian.prefetch_threads", 2), 1), 20);
+        m_prefetchExecutor = m_prefetchEnabled ? Executors.newFixedThreadPool(m_prefetchThreads) : null;
+    }
+
+    // calibrate prefetch tile's LatLonSize according to a point in the middle of the Czech Republic
+    private static final double prefetchTileSizeMeters = 400.0;
+    private static final LatLon prefetchTileCalibrationLatLon = new LatLon (49.79633635284708, 15.572776799999998);
+    private static final LatLonSize prefetchTileSize = LatLonSize.get(prefetchTileCalibrationLatLon, prefetchTileSizeMeters);
+    private static final int prefetchMaxViewportTiles = 16;
+    private static final int batchMaxTiles = 100;
+
+    private final TilePrefetch m_ruianPrefetch = !m_prefetchEnabled ? null : new TilePrefetch ("RUIAN", prefetchTileSize,
+        new TilePrefetch.ITileLoader () {
+            @Override
+            public void loadTile (Bounds bounds) throws Exception {
+                m_ruianServer.traceBounds (bounds, getServerUrl(), getAdjustLat(), getAdjustLon());
+            }
+        },
+        m_prefetchExecutor, m_prefetchThreads, prefetchMaxViewportTiles,
+        (long)Config.getPref().getInt("tracer.ruian.cache_ttl_minutes", 30) * 60 * 1000);
 
     public RuianModule(boolean enabled) {
         moduleEnabled = enabled;
+        if (m_ruianPrefetch != null) {
+            m_ruianServer.setCacheClearedListener (new Runnable () {
+                @Override
+                public void run () {
+                    m_ruianPrefetch.invalidate ();
+                }
+            });
+        }
     }
 
     @Override
@@ -73,33 +121,55 @@ public final class RuianModule extends BuildingTracerModule {
         moduleEnabled = enabled;
     };
 
+    private String getServerUrl() {
+        TracerPreferences pref = TracerPreferences.getInstance();
+        if (pref.isCustomRuainUrlEnabled())
+            return pref.getCustomRuainUrl();
+        return ruianUrl;
+    }
+
+    private double getAdjustLat() {
+        TracerPreferences pref = TracerPreferences.getInstance();
+        return pref.isRuianAdjustPositionEnabled() ? pref.getRuianAdjustPositionLat() : 0;
+    }
+
+    private double getAdjustLon() {
+        TracerPreferences pref = TracerPreferences.getInstance();
+        return pref.isRuianAdjustPositionEnabled() ? pref.getRuianAdjustPositionLon() : 0;
+    }
+
     @Override
     public AbstractTracerTask trace(final LatLon pos, final boolean ctrl, final boolean alt, final boolean shift) {
         return new RuianTracerTask (pos, ctrl, alt, shift);
     }
 
+    @Override
+    public List<? extends TracerRecord> downloadRecords(Bounds bounds) throws Exception {
+        // query by prefetch tiles, the server limits size of the area;
+        // buildings crossing tile borders are returned more than once
+        Map<Long, RuianRecord> records = new LinkedHashMap<> ();
+        for (Bounds tile: TracerUtils.splitBounds(bounds, prefetchTileSize, batchMaxTiles)) {
+            for (RuianRecord record: m_ruianServer.traceBounds(tile, getServerUrl(), getAdjustLat(), getAdjustLon()))
+                records.put(record.getBuildingID(), record);
+        }
+        return new ArrayList<> (records.values());
+    }
+
     class RuianTracerTask extends BuildingTracerTask {
 
+        private final Bounds m_viewport;
+
         RuianTracerTask (LatLon pos, boolean ctrl, boolean alt, boolean shift) {
             super (pos, ctrl, alt ,shift);
+            m_viewport = TracerUtils.getVisibleBounds();
         }
 
         @Override
         protected TracerRecord downloadRecord(LatLon pos) throws Exception {
-            TracerPreferences pref = TracerPreferences.getInstance();
-            String sUrl = ruianUrl;
-            if (pref.isCustomRuainUrlEnabled())
-              sUrl = pref.getCustomRuainUrl();
-
-            // Get coordinate corrections
-            double adjlat = 0, adjlon = 0;
-            if (pref.isRuianAdjustPositionEnabled()) {
-              adjlat = pref.getRuianAdjustPositionLat();
-              adjlon = pref.getRuianAdjustPositionLon();
-            }
+            if (m_ruianPrefetch != null)
+                m_ruianPrefetch.schedulePrefetch(pos, m_viewport);
 
-            RuianServer server = new RuianServer();
-            return server.trace(m_pos, sUrl, adjlat, adjlon);
+            return m_ruianServer.trace(m_pos, getServerUrl(), getAdjustLat(), getAdjustLon());
         }
     }
 }
@@ -18,7 +18,7 @@
 
 package org.openstreetmap.josm.plugins.tracer.modules.ruian;
 
-import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.util.*;
 import jakarta.json.Json;
 import jakarta.json.JsonArray;
@@ -69,11 +69,26 @@ public final class RuianRecord extends TracerRecord {
     }
 
     /**
-     * Parse given JSON string and fill record with RUIAN data
+     * Parse JSON data from given stream and fill record with RUIAN data
      *
-     * @param jsonStr JSON string with RUIAN data
+     * @param stream Stream with RUIAN JSON data
      */
-    public void parseJSON(String jsonStr) {
+    public void parseJSON(InputStream stream) {
+
+        JsonObject obj;
+        try (JsonReader jsonReader = Json.createReader(stream)) {
+            obj = jsonReader.readObject();
+        }
+
+        parseJSON(obj);
+    }
+
+    /**
+     * Fill record with RUIAN data from given JSON object
+     *
+     * @param obj JSON object of a single building
+     */
+    public void parseJSON(JsonObject obj) {
 
         init();
 
@@ -89,11 +104,6 @@ public final class RuianRecord extends TracerRecord {
         String region = "";
         String postcode = "";
 
-        JsonObject obj;
-        try (JsonReader jsonReader = Json.createReader(new ByteArrayInputStream(jsonStr.getBytes()))) {
-            obj = jsonReader.readObject();
-        }
-
         // get source
         m_source = parseJsonString(obj, "source", m_source);
 
@@ -19,37 +19,36 @@
 
 package org.openstreetmap.josm.plugins.tracer.modules.ruian;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.net.MalformedURLException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import jakarta.json.Json;
+import jakarta.json.JsonException;
+import jakarta.json.stream.JsonParser;
+import org.openstreetmap.josm.data.Bounds;
 import org.openstreetmap.josm.data.coor.LatLon;
 import org.openstreetmap.josm.plugins.tracer.TracerUtils;
 
 public final class RuianServer {
 
-    public RuianServer() {
-    }
+    private final RuianCache<RuianRecord> m_ruianCache;
 
-    /**
-     * Call Trace server.
-     *
-     * @param urlString Input parameters.
-     * @return Result text.
-     * @throws java.net.MalformedURLException Wrong url
-     * @throws java.io.IOException Input/Output issue
-     */
-    private String callServer(String urlString) throws MalformedURLException, IOException {
-        try (BufferedReader reader = TracerUtils.openUrlStream (urlString)) {
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (sb.length() > 0) {
-                    sb.append(" ");
-                }
-                sb.append(line);
+    // server and corrections of cached records
+    private String m_cachedUrl;
+    private double m_cachedAdjLat;
+    private double m_cachedAdjLon;
+
+    // notified whenever the record cache is cleared
+    private volatile Runnable m_cacheClearedListener;
+
+    public RuianServer() {
+        m_ruianCache = new RuianCache<RuianRecord> ("ruian") {
+            @Override
+            protected Object recordKey (RuianRecord record) {
+                return record.getBuildingID();
             }
-            return sb.toString();
-        }
+        };
     }
 
     /**
@@ -63,12 +62,95 @@ public final class RuianServer {
      * @throws java.io.IOException Input/Output issue
      */
     public RuianRecord trace(LatLon pos, String url, double adjlat, double adjlon) throws IOException {
+
+        // cached? Cached footprints are adjusted the same way as in TracerRecord, so adjust the position too
+        if (validateCache (url, adjlat, adjlon)) {
+            boolean adj = adjlat != 0.0 && adjlon != 0.0;
+            RuianRecord rec = m_ruianCache.get(adj ? new LatLon(pos.lat() + adjlat, pos.lon() + adjlon) : pos);
+            if (rec != null)
+                return rec;
+        }
+
         String call_url = url + "/ruian-buildings/?req=full&lat=" + pos.lat() + "&lon=" + pos.lon();
         System.out.println("Request: " + call_url);
-        String content = callServer(call_url);
-        System.out.println("Reply: " + content);
         RuianRecord ruian = new RuianRecord(adjlat, adjlon);
-        ruian.parseJSON(content);
+        try (InputStream stream = TracerUtils.openHttpStream (call_url, TracerUtils.getModuleTimeout("ruian"))) {
+            ruian.parseJSON(stream);
+        }
+
+        // cache record
+        m_ruianCache.add(ruian);
         return ruian;
     }
+
+    /**
+     * Download all buildings in given area and put them into the cache.
+     *
+     * @param bounds Area of buildings, must not exceed approx. 2x2 km.
+     * @param url Url of RUIAN server
+     * @param adjlat Latitude correction to be applied to building geometry.
+     * @param adjlon Longitude correction to be applied to building geometry.
+     * @return List of downloaded buildings.
+     * @throws java.io.IOException Input/Output issue
+     */
+    public List<RuianRecord> traceBounds(Bounds bounds, String url, double adjlat, double adjlon) throws IOException {
+        String call_url = url + "/ruian-buildings/?req=bbox" +
+            "&minlat=" + bounds.getMinLat() + "&minlon=" + bounds.getMinLon() +
+            "&maxlat=" + bounds.getMaxLat() + "&maxlon=" + bounds.getMaxLon();
+        System.out.println("Request: " + call_url);
+
+        List<RuianRecord> list = new ArrayList<>();
+        try (InputStream stream = TracerUtils.openHttpStream (call_url, TracerUtils.getModuleTimeout("ruian"));
+             JsonParser parser = Json.createParser(stream)) {
+            if (!parser.hasNext() || parser.next() != JsonParser.Event.START_ARRAY)
+                throw new IOException("Unexpected RUIAN bbox response");
+
+            // parse buildings one by one, don't build the whole document tree
+            while (parser.hasNext()) {
+                JsonParser.Event event = parser.next();
+                if (event == JsonParser.Event.END_ARRAY)
+                    break;
+                if (event != JsonParser.Event.START_OBJECT)
+                    throw new IOException("Unexpected RUIAN bbox response");
+                RuianRecord ruian = new RuianRecord(adjlat, adjlon);
+                ruian.parseJSON(parser.getObject());
+                if (ruian.hasData())
+                    list.add(ruian);
+            }
+        }
+        catch (JsonException e) {
+            throw new IOException("Invalid RUIAN bbox response: " + e.getMessage(), e);
+        }
+        System.out.println("RuianServer: buildings in bounds: " + Integer.toString(list.size()));
+
+        // cache records
+        validateCache (url, adjlat, adjlon);
+        for (RuianRecord ruian: list)
+            m_ruianCache.add(ruian);
+        return list;
+    }
+
+    /**
+     * Sets listener called whenever cached records are dropped, e.g. to forget
+     * prefetched tiles.
+     * @param listener Listener or null
+     */
+    public void setCacheClearedListener (Runnable listener) {
+        m_cacheClearedListener = listener;
+    }
+
+    private synchronized boolean validateCache (String url, double adjlat, double adjlon) {
+        if (url.equals(m_cachedUrl) && adjlat == m_cachedAdjLat && adjlon == m_cachedAdjLon)
+            return true;
+        if (m_cachedUrl != null)
+            System.out.println("RuianServer: server or corrections changed, clearing cache");
+        m_ruianCache.clear();
+        Runnable listener = m_cacheClearedListener;
+        if (listener != null)
+            listener.run();
+        m_cachedUrl = url;
+        m_cachedAdjLat = adjlat;
+        m_cachedAdjLon = adjlon;
+        return false;
+    }
 }
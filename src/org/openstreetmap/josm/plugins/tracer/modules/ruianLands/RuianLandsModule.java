@@ -20,15 +20,22 @@ package org.openstreetmap.josm.plugins.tracer.modules.ruianLands;
 
 import java.awt.Cursor;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.openstreetmap.josm.data.Bounds;
 import org.openstreetmap.josm.data.coor.LatLon;
 import org.openstreetmap.josm.data.osm.search.SearchCompiler;
 import org.openstreetmap.josm.data.osm.search.SearchCompiler.Match;
 import org.openstreetmap.josm.data.osm.search.SearchParseError;
+import org.openstreetmap.josm.plugins.tracer.IBatchTracerModule;
+import org.openstreetmap.josm.plugins.tracer.TilePrefetch;
 import org.openstreetmap.josm.plugins.tracer.TracerModule;
 import org.openstreetmap.josm.plugins.tracer.TracerPreferences;
 import org.openstreetmap.josm.plugins.tracer.TracerRecord;
+import org.openstreetmap.josm.plugins.tracer.TracerUtils;
 import org.openstreetmap.josm.plugins.tracer.connectways.*;
+import org.openstreetmap.josm.spi.preferences.Config;
 
 import static org.openstreetmap.josm.tools.I18n.*;
 import org.openstreetmap.josm.tools.ImageProvider;
@@ -36,7 +43,7 @@ import org.openstreetmap.josm.tools.Pair;
 
 
 
-public final class RuianLandsModule extends TracerModule {
+public final class RuianLandsModule extends TracerModule implements IBatchTracerModule {
 
     protected boolean cancel;
     private boolean moduleEnabled;
@@ -44,6 +51,45 @@ public final class RuianLandsModule extends TracerModule {
     private static final double oversizeInDataBoundsMeters = 5.0;
 
     private static final String RuianLandsUrl = "http://josm.poloha.net";
+    private final RuianLandsServer m_landsServer = new RuianLandsServer ();
+    private static final ExecutorService m_downloadExecutor;
+
+    private static final boolean m_prefetchEnabled;
+    private static final ExecutorService m_prefetchExecutor;
+    private static final int m_prefetchThreads;
+
+    static {
+        int threads = Config.getPref().getInt("tracer.ruian_lands.download_threads", 2);
+        if (threads > 0) {
+            if (threads > 20) // avoid stupid values
+                threads = 20;
+            m_downloadExecutor = Executors.newFixedThreadPool(threads);
+        }
+        else {
+            m_downloadExecutor = null;
+        }
+
+        m_prefetchEnabled = Config.getPref().getBoolean("tracer.ruian_lands.prefetch", true);
+        m_prefetchThreads = Math.min(Math.max(Config.getPref().getInt("tracer.ruian_lands.prefetch_threads", 2), 1), 20);
+        m_prefetchExecutor = m_prefetchEnabled ? Executors.newFixedThreadPool(m_prefetchThreads) : null;
+    }
+
+    // calibrate prefetch tile's LatLonSize according to a point in the middle of the Czech Republic
+    private static final double prefetchTileSizeMeters = 400.0;
+    private static final LatLon prefetchTileCalibrationLatLon = new LatLon (49.79633635284708, 15.572776799999998);
+    private static final LatLonSize prefetchTileSize = LatLonSize.get(prefetchTileCalibrationLatLon, prefetchTileSizeMeters);
+    private static final int prefetchMaxViewportTiles = 16;
+    private static final int batchMaxTiles = 100;
+
+    private final TilePrefetch m_landsPrefetch = !m_prefetchEnabled ? null : new TilePrefetch ("RUIAN lands", prefetchTileSize,
+        new TilePrefetch.ITileLoader () {
+            @Override
+            public void loadTile (Bounds bounds) throws Exception {
+                m_landsServer.traceBounds (bounds, getServerUrl(), getAdjustLat(), getAdjustLon());
+            }
+        },
+        m_prefetchExecutor, m_prefetchThreads, prefetchMaxViewportTiles,
+        (long)Config.getPref().getInt("tracer.ruian_lands.cache_ttl_minutes", 30) * 60 * 1000);
 
     private static final String reuseExistingLanduseNodePattern =
         "((landuse=* -landuse=no -landuse=military) | natural=scrub | natural=wood | natural=grassland | leisure=garden)";
@@ -107,6 +153,14 @@ public final class RuianLandsModule extends TracerModule {
 
     public RuianLandsModule(boolean enabled) {
       moduleEnabled = enabled;
+      if (m_landsPrefetch != null) {
+          m_landsServer.setCacheClearedListener (new Runnable () {
+              @Override
+              public void run () {
+                  m_landsPrefetch.invalidate ();
+              }
+          });
+      }
     }
 
     @Override
@@ -147,43 +201,69 @@ public final class RuianLandsModule extends TracerModule {
         moduleEnabled = enabled;
     };
 
+    private String getServerUrl() {
+        TracerPreferences pref = TracerPreferences.getInstance();
+        if (pref.isCustomRuainUrlEnabled())
+            return pref.getCustomRuainUrl();
+        return RuianLandsUrl;
+    }
+
+    private double getAdjustLat() {
+        TracerPreferences pref = TracerPreferences.getInstance();
+        return pref.isRuianAdjustPositionEnabled() ? pref.getRuianAdjustPositionLat() : 0;
+    }
+
+    private double getAdjustLon() {
+        TracerPreferences pref = TracerPreferences.getInstance();
+        return pref.isRuianAdjustPositionEnabled() ? pref.getRuianAdjustPositionLon() : 0;
+    }
+
     @Override
     public AbstractTracerTask trace(final LatLon pos, final boolean ctrl, final boolean alt, final boolean shift) {
         return new RuianLandsTracerTask (pos, ctrl, alt, shift);
     }
 
+    @Override
+    public List<? extends TracerRecord> downloadRecords(Bounds bounds) throws Exception {
+        // query by prefetch tiles, the server limits size of the area;
+        // lands crossing tile borders are returned more than once, they have no ID
+        Map<List<LatLon>, RuianLandsRecord> records = new LinkedHashMap<> ();
+        for (Bounds tile: TracerUtils.splitBounds(bounds, prefetchTileSize, batchMaxTiles)) {
+            for (RuianLandsRecord record: m_landsServer.traceBounds(tile, getServerUrl(), getAdjustLat(), getAdjustLon()))
+                records.put(record.getOuter(), record);
+        }
+        return new ArrayList<> (records.values());
+    }
+
     class RuianLandsTracerTask extends AbstractTracerTask {
 
         private final GeomDeviation m_tolerance = new GeomDeviation (0.2, Math.PI / 3);
         private final ClipAreasSettings m_clipSettings = new ClipAreasSettings (m_tolerance);
 
         private final boolean m_invertClip;
+        private final Bounds m_viewport;
 
         RuianLandsTracerTask  (LatLon pos, boolean ctrl, boolean alt, boolean shift) {
             super (pos, ctrl, alt, shift);
             m_invertClip = alt;
+            m_viewport = TracerUtils.getVisibleBounds();
         }
 
         private RuianLandsRecord record() {
             return (RuianLandsRecord)super.getRecord();
         }
 
+        @Override
+        protected ExecutorService getDownloadRecordExecutor() {
+            return m_downloadExecutor;
+        }
+
         @Override
         protected TracerRecord downloadRecord(LatLon pos) throws Exception {
-            TracerPreferences pref = TracerPreferences.getInstance();
-            String sUrl = RuianLandsUrl;
-            if (pref.isCustomRuainUrlEnabled())
-              sUrl = pref.getCustomRuainUrl();
-
-            // Get coordinate corrections
-            double adjlat = 0, adjlon = 0;
-            if (pref.isRuianAdjustPositionEnabled()) {
-              adjlat = pref.getRuianAdjustPositionLat();
-              adjlon = pref.getRuianAdjustPositionLon();
-            }
+            if (m_landsPrefetch != null)
+                m_landsPrefetch.schedulePrefetch(pos, m_viewport);
 
-            RuianLandsServer server = new RuianLandsServer();
-            return server.trace(m_pos, sUrl, adjlat, adjlon);
+            return m_landsServer.trace(m_pos, getServerUrl(), getAdjustLat(), getAdjustLon());
         }
 
         @Override
@@ -18,7 +18,7 @@
 
 package org.openstreetmap.josm.plugins.tracer.modules.ruianLands;
 
-import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 
 import java.util.*;
 import jakarta.json.Json;
@@ -220,19 +220,29 @@ public final class RuianLandsRecord extends TracerRecord {
     }*/
 
     /**
-     * Parse given JSON string and fill variables with RUIAN data
+     * Parse JSON data from given stream and fill variables with RUIAN data
      *
-     * @param jsonStr JSON string with RUIAN data
+     * @param stream Stream with RUIAN JSON data
      */
-    public void parseJSON(String jsonStr) {
-
-        init();
+    public void parseJSON(InputStream stream) {
 
         JsonObject obj;
-        try (JsonReader jsonReader = Json.createReader(new ByteArrayInputStream(jsonStr.getBytes()))) {
+        try (JsonReader jsonReader = Json.createReader(stream)) {
             obj = jsonReader.readObject();
         }
 
+        parseJSON(obj);
+    }
+
+    /**
+     * Fill variables with RUIAN data from given JSON object
+     *
+     * @param obj JSON object of a single land
+     */
+    public void parseJSON(JsonObject obj) {
+
+        init();
+
         m_source = obj.getString("source");
         if (m_source.length() == 0)
             m_source = "cuzk:ruian";
@@ -19,45 +19,131 @@
 
 package org.openstreetmap.josm.plugins.tracer.modules.ruianLands;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.net.MalformedURLException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import jakarta.json.Json;
+import jakarta.json.JsonException;
+import jakarta.json.stream.JsonParser;
+import org.openstreetmap.josm.data.Bounds;
 import org.openstreetmap.josm.data.coor.LatLon;
 import org.openstreetmap.josm.plugins.tracer.TracerUtils;
+import org.openstreetmap.josm.plugins.tracer.modules.ruian.RuianCache;
 
 
 public class RuianLandsServer {
 
+    private final RuianCache<RuianLandsRecord> m_landsCache;
+
+    // server and corrections of cached records
+    private String m_cachedUrl;
+    private double m_cachedAdjLat;
+    private double m_cachedAdjLon;
+
+    // notified whenever the record cache is cleared
+    private volatile Runnable m_cacheClearedListener;
+
     public RuianLandsServer() {
+        // lands have no id, identical footprints are the same land
+        m_landsCache = new RuianCache<RuianLandsRecord> ("ruian_lands") {
+            @Override
+            protected Object recordKey (RuianLandsRecord record) {
+                return record.getOuter();
+            }
+        };
+    }
+
+    public RuianLandsRecord trace(LatLon pos, String url, double adjlat, double adjlon) throws IOException {
+
+        // cached? Cached footprints are adjusted the same way as in TracerRecord, so adjust the position too
+        if (validateCache (url, adjlat, adjlon)) {
+            boolean adj = adjlat != 0.0 && adjlon != 0.0;
+            RuianLandsRecord rec = m_landsCache.get(adj ? new LatLon(pos.lat() + adjlat, pos.lon() + adjlon) : pos);
+            if (rec != null)
+                return rec;
+        }
+
+        String call_url = url + "/ruian-lands/beta/?lat=" + pos.lat() + "&lon=" + pos.lon();
+        System.out.println("Request: "+ call_url);
+        RuianLandsRecord ruian = new RuianLandsRecord(adjlat, adjlon);
+        try (InputStream stream = TracerUtils.openHttpStream (call_url, TracerUtils.getModuleTimeout("ruian_lands"))) {
+            ruian.parseJSON(stream);
+        }
 
+        // cache record
+        m_landsCache.add(ruian);
+        return ruian;
     }
 
     /**
-     * Call Trace server.
-     * @param urlString Input parameters.
-     * @return Result text.
-     * @throws java.net.MalformedURLException Wrong url
+     * Download all lands in given area and put them into the cache.
+     *
+     * @param bounds Area of lands, must not exceed approx. 2x2 km.
+     * @param url Url of RUIAN server
+     * @param adjlat Latitude correction to be applied to land geometry.
+     * @param adjlon Longitude correction to be applied to land geometry.
+     * @return List of downloaded lands.
      * @throws java.io.IOException Input/Output issue
      */
-    private String callServer(String urlString) throws MalformedURLException, IOException {
-        try (BufferedReader reader = TracerUtils.openUrlStream (urlString)) {
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (sb.length() > 0)
-                    sb.append(" ");
-                sb.append(line);
+    public List<RuianLandsRecord> traceBounds(Bounds bounds, String url, double adjlat, double adjlon) throws IOException {
+        String call_url = url + "/ruian-lands/beta/?req=bbox" +
+            "&minlat=" + bounds.getMinLat() + "&minlon=" + bounds.getMinLon() +
+            "&maxlat=" + bounds.getMaxLat() + "&maxlon=" + bounds.getMaxLon();
+        System.out.println("Request: " + call_url);
+
+        List<RuianLandsRecord> list = new ArrayList<>();
+        try (InputStream stream = TracerUtils.openHttpStream (call_url, TracerUtils.getModuleTimeout("ruian_lands"));
+             JsonParser parser = Json.createParser(stream)) {
+            if (!parser.hasNext() || parser.next() != JsonParser.Event.START_ARRAY)
+                throw new IOException("Unexpected RUIAN lands bbox response");
+
+            // parse lands one by one, don't build the whole document tree
+            while (parser.hasNext()) {
+                JsonParser.Event event = parser.next();
+                if (event == JsonParser.Event.END_ARRAY)
+                    break;
+                if (event != JsonParser.Event.START_OBJECT)
+                    throw new IOException("Unexpected RUIAN lands bbox response");
+                RuianLandsRecord ruian = new RuianLandsRecord(adjlat, adjlon);
+                ruian.parseJSON(parser.getObject());
+                if (ruian.hasData())
+                    list.add(ruian);
             }
-            return sb.toString();
         }
+        catch (JsonException e) {
+            throw new IOException("Invalid RUIAN lands bbox response: " + e.getMessage(), e);
+        }
+        System.out.println("RuianLandsServer: lands in bounds: " + Integer.toString(list.size()));
+
+        // cache records
+        validateCache (url, adjlat, adjlon);
+        for (RuianLandsRecord ruian: list)
+            m_landsCache.add(ruian);
+        return list;
     }
 
-    public RuianLandsRecord trace(LatLon pos, String url, double adjlat, double adjlon) throws IOException {
-        System.out.println("Request: "+ url + "/ruian-lands/beta/?lat=" + pos.lat() + "&lon=" + pos.lon());
-        String content = callServer(url + "/ruian-lands/beta/?lat=" + pos.lat() + "&lon=" + pos.lon());
-        System.out.println("Reply: " + content);
-        RuianLandsRecord ruian = new RuianLandsRecord(adjlat, adjlon);
-        ruian.parseJSON(content);
-        return ruian;
+    /**
+     * Sets listener called whenever cached records are dropped, e.g. to forget
+     * prefetched tiles.
+     * @param listener Listener or null
+     */
+    public void setCacheClearedListener (Runnable listener) {
+        m_cacheClearedListener = listener;
+    }
+
+    private synchronized boolean validateCache (String url, double adjlat, double adjlon) {
+        if (url.equals(m_cachedUrl) && adjlat == m_cachedAdjLat && adjlon == m_cachedAdjLon)
+            return true;
+        if (m_cachedUrl != null)
+            System.out.println("RuianLandsServer: server or corrections changed, clearing cache");
+        m_landsCache.clear();
+        Runnable listener = m_cacheClearedListener;
+        if (listener != null)
+            listener.run();
+        m_cachedUrl = url;
+        m_cachedAdjLat = adjlat;
+        m_cachedAdjLon = adjlon;
+        return false;
     }
 }
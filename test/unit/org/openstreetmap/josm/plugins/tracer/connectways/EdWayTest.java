@@ -0,0 +1,72 @@
+/**
+ *  Tracer - plugin for JOSM
+ *  Jan Bilak, Marian Kyral, Martin Svec
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.openstreetmap.josm.plugins.tracer.connectways;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests of {@link EdWay#insertIntoSegments}.
+ */
+class EdWayTest {
+
+    @Test
+    void nodesOfOneSegmentAreSortedByDistanceFromSegmentStart() {
+        List<String> way = Arrays.asList("A", "B", "C");
+        List<String> nodes = Arrays.asList("x3", "x1", "x2");
+        int[] segments = { 0, 0, 0 };
+        double[] distances = { 30.0, 10.0, 20.0 };
+
+        assertEquals(Arrays.asList("A", "x1", "x2", "x3", "B", "C"),
+            EdWay.insertIntoSegments(way, nodes, segments, distances));
+    }
+
+    @Test
+    void nodesAreInsertedIntoTheirOwnSegments() {
+        List<String> way = Arrays.asList("A", "B", "C", "A");
+        List<String> nodes = Arrays.asList("c2", "a1", "c1", "b1");
+        int[] segments = { 2, 0, 2, 1 };
+        double[] distances = { 5.0, 1.0, 2.0, 7.0 };
+
+        assertEquals(Arrays.asList("A", "a1", "B", "b1", "C", "c1", "c2", "A"),
+            EdWay.insertIntoSegments(way, nodes, segments, distances));
+    }
+
+    @Test
+    void nodesWithEqualDistanceKeepTheirOrder() {
+        List<String> way = Arrays.asList("A", "B");
+        List<String> nodes = Arrays.asList("y", "x", "z");
+        int[] segments = { 0, 0, 0 };
+        double[] distances = { 4.0, 4.0, 1.0 };
+
+        assertEquals(Arrays.asList("A", "z", "y", "x", "B"),
+            EdWay.insertIntoSegments(way, nodes, segments, distances));
+    }
+
+    @Test
+    void noNodesLeaveTheWayUnchanged() {
+        List<String> way = Arrays.asList("A", "B", "C");
+
+        assertEquals(way, EdWay.insertIntoSegments(way, Collections.<String>emptyList(), new int[0], new double[0]));
+    }
+}